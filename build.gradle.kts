@@ -26,6 +26,8 @@ val buildTools by configurations.creating {
 }
 
 dependencies {
+	implementation(libs.asm)
+
 	testImplementation(libs.bundles.test)
 	testRuntimeOnly(libs.bundles.testRuntime)
 
@@ -39,11 +39,21 @@ import java.io.Serial;
  * Java method signatures do notdeclare this exception, althoug it can
  * be thrown on almost any luaj Java operation.
  * This is analagous to the fact that any lua script can throw a lua error at any time.
+ * <p>
+ * Lua errors are used for control flow (such as {@code error} and {@code pcall}), so by default they do not capture a
+ * Java stack trace. This can be enabled with {@link LuaState.Builder#javaStackTraces(boolean)} when debugging.
  */
 public final class LuaError extends Exception {
 	@Serial
 	private static final long serialVersionUID = 3065540200206862088L;
 
+	/**
+	 * Whether errors created on this thread should capture a Java stack trace.
+	 *
+	 * @see LuaState.Builder#javaStackTraces(boolean)
+	 */
+	private static final ThreadLocal<Boolean> captureStackTraces = new ThreadLocal<>();
+
 	private LuaValue value;
 
 	/**
@@ -138,6 +148,23 @@ public final class LuaError extends Exception {
 		return new LuaError(error);
 	}
 
+	/**
+	 * Set whether errors created on the current thread should capture a Java stack trace.
+	 *
+	 * @param capture Whether to capture stack traces.
+	 * @return Whether stack traces were previously captured.
+	 */
+	static boolean captureStackTraces(boolean capture) {
+		boolean previous = captureStackTraces.get() == Boolean.TRUE;
+		captureStackTraces.set(capture);
+		return previous;
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return captureStackTraces.get() == Boolean.TRUE ? super.fillInStackTrace() : this;
+	}
+
 	@Override
 	public String getMessage() {
 		return traceback != null ? traceback : rawToString(value);
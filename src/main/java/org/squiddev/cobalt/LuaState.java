@@ -24,9 +24,13 @@
  */
 package org.squiddev.cobalt;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.squiddev.cobalt.compiler.BytecodeOptimizer;
 import org.squiddev.cobalt.compiler.LoadState;
 import org.squiddev.cobalt.compiler.LuaC;
 import org.squiddev.cobalt.debug.DebugFrame;
+import org.squiddev.cobalt.function.InstructionProfiler;
+import org.squiddev.cobalt.function.TieredCompiler;
 import org.squiddev.cobalt.interrupt.InterruptAction;
 import org.squiddev.cobalt.interrupt.InterruptHandler;
 
@@ -72,6 +76,34 @@ public final class LuaState {
 	 */
 	public final LoadState.FunctionFactory compiler;
 
+	/**
+	 * The compiler used to compile hot functions, or {@code null} if all functions should be interpreted.
+	 */
+	public final TieredCompiler tieredCompiler;
+
+	/**
+	 * Whether to optimise functions' bytecode when they are loaded.
+	 *
+	 * @see BytecodeOptimizer
+	 */
+	public final boolean optimizeBytecode;
+
+	/**
+	 * Whether to reuse closures with identical upvalues.
+	 *
+	 * @see Builder#cacheClosures(boolean)
+	 */
+	public final boolean cacheClosures;
+
+	/**
+	 * Whether {@link LuaError}s thrown while running code in this state capture a Java stack trace.
+	 *
+	 * @see Builder#javaStackTraces(boolean)
+	 */
+	public final boolean javaStackTraces;
+
+	private @Nullable InstructionProfiler profiler;
+
 	private volatile boolean interrupted;
 	private final InterruptHandler interruptHandler;
 
@@ -98,6 +130,10 @@ public final class LuaState {
 
 	private LuaState(Builder builder) {
 		compiler = builder.compiler;
+		tieredCompiler = builder.tieredCompiler;
+		optimizeBytecode = builder.optimizeBytecode;
+		cacheClosures = builder.cacheClosures;
+		javaStackTraces = builder.javaStackTraces;
 		interruptHandler = builder.interruptHandler;
 		reportError = builder.reportError;
 
@@ -133,6 +169,25 @@ public final class LuaState {
 		return currentThread;
 	}
 
+	/**
+	 * Get the current instruction profiler.
+	 *
+	 * @return The current profiler, or {@code null} if profiling is disabled.
+	 */
+	public @Nullable InstructionProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Start or stop profiling the instructions executed by the interpreter. This takes effect the next time a Lua
+	 * function is called or returned to.
+	 *
+	 * @param profiler The profiler to record instructions to, or {@code null} to disable profiling.
+	 */
+	public void setProfiler(@Nullable InstructionProfiler profiler) {
+		this.profiler = profiler;
+	}
+
 	/**
 	 * Interrupt the execution of the current runtime.
 	 * <p>
@@ -219,6 +274,10 @@ public final class LuaState {
 	 */
 	public static class Builder {
 		private LoadState.FunctionFactory compiler = LoadState::interpretedFunction;
+		private TieredCompiler tieredCompiler = null;
+		private boolean optimizeBytecode = false;
+		private boolean cacheClosures = false;
+		private boolean javaStackTraces = false;
 		private InterruptHandler interruptHandler = null;
 		private ErrorReporter reportError;
 
@@ -243,6 +302,71 @@ public final class LuaState {
 			return this;
 		}
 
+		/**
+		 * Compile frequently used functions to JVM bytecode in the background. Unlike
+		 * {@linkplain #compiler(LoadState.FunctionFactory) using the JvmCompiler directly}, this only compiles
+		 * functions once they have been executed a number of times.
+		 *
+		 * @param compiler The compiler to use for hot functions.
+		 * @return This builder
+		 */
+		public Builder tieredCompiler(TieredCompiler compiler) {
+			Objects.requireNonNull(compiler, "compiler cannot be null");
+			tieredCompiler = compiler;
+			return this;
+		}
+
+		/**
+		 * Run the {@link BytecodeOptimizer} on all code loaded by this Lua state. This is disabled by default.
+		 * <p>
+		 * Optimised functions execute fewer instructions, but their bytecode no longer corresponds exactly to the source,
+		 * so instruction count hooks and {@code string.dump} will observe the optimised code.
+		 *
+		 * @param optimize Whether to optimise loaded code.
+		 * @return This builder
+		 */
+		public Builder optimizeBytecode(boolean optimize) {
+			optimizeBytecode = optimize;
+			return this;
+		}
+
+		/**
+		 * Reuse closures rather than creating a new one each time a {@code function} expression is evaluated. This is
+		 * disabled by default.
+		 * <p>
+		 * Like Lua 5.2, each function expression remembers the last closure it created. If the next closure would
+		 * have the same environment and upvalues, the previous closure is returned instead. This avoids allocating
+		 * closures for functions which capture nothing, or only capture upvalues of the enclosing function.
+		 * <p>
+		 * This is not compatible with Lua 5.1's semantics, as closures which were previously distinct may now be
+		 * equal. This is visible when using closures as table keys, or when changing a closure's environment with
+		 * {@code setfenv}.
+		 *
+		 * @param cache Whether to cache closures.
+		 * @return This builder
+		 */
+		public Builder cacheClosures(boolean cache) {
+			cacheClosures = cache;
+			return this;
+		}
+
+		/**
+		 * Capture a Java stack trace for every {@link LuaError} thrown while running code in this state. This is
+		 * disabled by default.
+		 * <p>
+		 * Errors are frequently thrown and caught by Lua code, and capturing a stack trace is much more expensive than
+		 * creating the error itself. This is only useful when debugging the Java side of the program, such as finding
+		 * which library function raised an error. Errors caused by a Java exception always include that exception (and
+		 * its stack trace) as their cause.
+		 *
+		 * @param capture Whether to capture Java stack traces.
+		 * @return This builder
+		 */
+		public Builder javaStackTraces(boolean capture) {
+			javaStackTraces = capture;
+			return this;
+		}
+
 		/**
 		 * Set the interrupt handler for this Lua state.
 		 *
@@ -26,8 +26,13 @@ package org.squiddev.cobalt;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.ValueFactory.*;
@@ -76,16 +81,75 @@ import static org.squiddev.cobalt.ValueFactory.*;
  */
 public final class LuaTable extends LuaValue {
 	private static final Object[] EMPTY_ARRAY = new Object[0];
-	private static final Node[] EMPTY_NODES = new Node[0];
+	private static final int[] EMPTY_NEXT = new int[0];
 	private static final LuaString N = valueOf("n");
 
+	/**
+	 * A value in {@link #numbers} representing {@link Constants#NIL}. This is a NaN which no arithmetic produces, and
+	 * we store all other NaNs as {@link Double#NaN}.
+	 */
+	private static final long NIL_NUMBER_BITS = 0x7ff8_0000_0000_0001L;
+	private static final double NIL_NUMBER = Double.longBitsToDouble(NIL_NUMBER_BITS);
+
 	private Object[] array = EMPTY_ARRAY;
-	private Node[] nodes = EMPTY_NODES;
+
+	/**
+	 * The array part of the table, when it only contains numbers. If this is non-null then {@link #array} is empty, and
+	 * the array part is stored here instead. The first non-number stored in the array part converts it back to
+	 * {@link #array}, as does reading from it too often (see {@link #numberReads}).
+	 */
+	private double @Nullable [] numbers;
+
+	/**
+	 * The number of values read from {@link #numbers} since it was created. Every read boxes the number again, so once
+	 * the array part has been read as many times as it has slots, it is converted back to {@link #array}.
+	 */
+	private int numberReads;
+
+	/**
+	 * The length of the array part's non-nil prefix, if every slot after it is nil, or {@code -1} if unknown. This is
+	 * kept up to date as values are set, allowing {@link #length()} to avoid searching the array part.
+	 * <p>
+	 * This is recomputed whenever the table is resized, and is always unknown for tables with weak values, as they may
+	 * be removed at any point.
+	 */
+	private int border = 0;
+
+	/*
+	 * The hash part of the table. This is a chained scatter table, as in ltable.c, stored as parallel arrays rather
+	 * than an array of nodes. Free slots have a key of NIL, and next is the slot of the next key in the chain, or -1.
+	 */
+	private Object[] keys = EMPTY_ARRAY;
+	private Object[] values = EMPTY_ARRAY;
+	private int[] next = EMPTY_NEXT;
 	private int lastFree = 0;
 
+	/**
+	 * The shape this table's hash part has. If non-null, then {@link #keys} and {@link #next} are shared with other
+	 * tables and must not be modified.
+	 */
+	private @Nullable Shape shape;
+
+	/**
+	 * Incremented whenever a key is added to the hash part or the hash part is resized. While this is unchanged, the
+	 * slots for existing keys will not move.
+	 *
+	 * @see CachedSlot
+	 */
+	private int stamp;
+
 	private boolean weakKeys;
 	private boolean weakValues;
 
+	/**
+	 * The queue which weak references in this table are registered with. This is non-null if and only if this table
+	 * has weak keys or values.
+	 *
+	 * @see #expungeWeakEntries()
+	 */
+	private @Nullable ReferenceQueue<Object> referenceQueue;
+	private long reclaimedEntries;
+
 	private int metatableFlags;
 	private LuaTable metatable;
 
@@ -163,8 +227,8 @@ public final class LuaTable extends LuaValue {
 	 * @param nArray the number of array slots to preallocate in the table.
 	 */
 	public void presize(int nArray) {
-		if (nArray > array.length) {
-			resize(nodes.length, 1 << log2(nArray), false);
+		if (nArray > arrayLength()) {
+			resize(keys.length, 1 << log2(nArray), false);
 		}
 	}
 
@@ -191,6 +255,7 @@ public final class LuaTable extends LuaValue {
 		if (newWeakKeys != weakKeys || newWeakValues != weakValues) {
 			weakKeys = newWeakKeys;
 			weakValues = newWeakValues;
+			referenceQueue = newWeakKeys || newWeakValues ? new ReferenceQueue<>() : null;
 			rehash(null, true);
 		}
 	}
@@ -232,7 +297,12 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public int length() {
-		int a = array.length;
+		int a = arrayLength();
+
+		// If the array part is a non-nil prefix followed by nils, then that prefix is the only border in the array.
+		int border = this.border;
+		if (border >= 0 && border < a) return border;
+
 		/*
 		 * Array cannot contain nil value, except if that array is statically allocated
 		 * So if the last element is nil it means we need to binary search the array to find
@@ -250,8 +320,8 @@ public final class LuaTable extends LuaValue {
 				}
 			}
 			return m;
-		} else if (nodes.length == 0) {
-			// When no nodes are present and the last item is not nil,
+		} else if (keys.length == 0) {
+			// When no keys are present and the last item is not nil,
 			// the size of the table is the exact same size its capacity,
 			// so we can directly return the array.length
 			return a;
@@ -291,9 +361,9 @@ public final class LuaTable extends LuaValue {
 	 */
 	public int size() {
 		int i = 0;
-		for (var k : array) if (!strengthen(k).isNil()) i++;
-		for (var e : nodes) {
-			if (!e.key().isNil() && !e.value().isNil()) i++;
+		for (int index = 0, length = arrayLength(); index < length; index++) if (!isArrayNil(index)) i++;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (!key(slot).isNil() && !value(slot).isNil()) i++;
 		}
 		return i;
 	}
@@ -328,21 +398,84 @@ public final class LuaTable extends LuaValue {
 		int i = findIndex(key);
 		if (i < 0) throw new LuaError("invalid key to 'next'");
 
-		for (; i < array.length; i++) {
-			LuaValue value = strengthen(array[i]);
+		int arrayLength = arrayLength();
+		for (; i < arrayLength; i++) {
+			LuaValue value = arrayGet(i);
 			if (!value.isNil()) return varargsOf(valueOf(i + 1), value);
 		}
 
-		i -= array.length;
-		for (; i < nodes.length; i++) {
-			Node node = nodes[i];
-			LuaValue value = node.value();
-			if (!node.key().isNil() && !value.isNil()) return varargsOf(node.key(), value);
+		i -= arrayLength;
+		for (; i < keys.length; i++) {
+			LuaValue nextKey = key(i);
+			LuaValue value = value(i);
+			if (!nextKey.isNil() && !value.isNil()) return varargsOf(nextKey, value);
 		}
 
 		return NIL;
 	}
 
+	/**
+	 * Find the next entry in the table, like {@link #next(LuaValue)}, but starting from a known position rather than
+	 * looking up the current key. This allows iterating over a table without allocating.
+	 *
+	 * @param key  The current key, or {@link Constants#NIL} to start at the beginning.
+	 * @param hint The index {@code key} is stored at, as returned from a previous call to this method. This is only a
+	 *             hint, and is checked before being used.
+	 * @return The index of the next entry, to be read with {@link #keyAt(int)} and {@link #valueAt(int)}, or {@code -1}
+	 * if there are no more entries.
+	 * @throws LuaError If the key is not in the table.
+	 */
+	public int nextIndex(LuaValue key, int hint) throws LuaError {
+		int i;
+		if (hint >= 0 && !key.isNil() && isKeyAt(hint, key)) {
+			i = hint + 1;
+		} else {
+			i = findIndex(key);
+			if (i < 0) throw new LuaError("invalid key to 'next'");
+		}
+
+		int arrayLength = arrayLength();
+		for (; i < arrayLength; i++) {
+			if (!isArrayNil(i)) return i;
+		}
+
+		for (int j = i - arrayLength; j < keys.length; j++) {
+			if (!key(j).isNil() && !value(j).isNil()) return j + arrayLength;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Get the key at an index returned by {@link #nextIndex(LuaValue, int)}.
+	 *
+	 * @param index The index of this entry.
+	 * @return The entry's key.
+	 */
+	public LuaValue keyAt(int index) {
+		int arrayLength = arrayLength();
+		return index < arrayLength ? valueOf(index + 1) : key(index - arrayLength);
+	}
+
+	/**
+	 * Get the value at an index returned by {@link #nextIndex(LuaValue, int)}.
+	 *
+	 * @param index The index of this entry.
+	 * @return The entry's value. This may be {@link Constants#NIL} if the value has since been removed.
+	 */
+	public LuaValue valueAt(int index) {
+		int arrayLength = arrayLength();
+		return index < arrayLength ? arrayGet(index) : value(index - arrayLength);
+	}
+
+	private boolean isKeyAt(int index, LuaValue key) {
+		int arrayLength = arrayLength();
+		if (index < arrayLength) return key instanceof LuaInteger integer && integer.v == index + 1;
+
+		index -= arrayLength;
+		return index < keys.length && key(index) == key;
+	}
+
 	/**
 	 * Returns the index of this key for table traversals + 1.
 	 *
@@ -355,23 +488,16 @@ public final class LuaTable extends LuaValue {
 
 		// Its in the array part so just return that
 		int arrayIndex = arraySlot(key);
-		if (arrayIndex > 0 && arrayIndex <= array.length) return arrayIndex;
-		if (nodes.length == 0) return -1;
+		if (arrayIndex > 0 && arrayIndex <= arrayLength()) return arrayIndex;
+		if (keys.length == 0) return -1;
 
 		// Must be in the main part so try to find it in the chain.
 		int idx = hashSlot(key);
-		Node node = nodes[idx];
 		while (true) {
-			if (node.key().equals(key)) {
-				return idx + array.length + 1;
-			}
+			if (key(idx).equals(key)) return idx + arrayLength() + 1;
 
-			if (node.next >= 0) {
-				idx = node.next;
-				node = nodes[node.next];
-			} else {
-				return -1;
-			}
+			idx = next[idx];
+			if (idx < 0) return -1;
 		}
 	}
 
@@ -391,9 +517,13 @@ public final class LuaTable extends LuaValue {
 	 * @return the slot index
 	 */
 	private static int hashSlot(LuaValue key, int hashMask) {
+		return usesHashMod(key) ? hashmod(key.hashCode(), hashMask) : hashpow2(key.hashCode(), hashMask);
+	}
+
+	private static boolean usesHashMod(LuaValue key) {
 		return switch (key.type()) {
-			case TNUMBER, TTABLE, TTHREAD, TLIGHTUSERDATA, TUSERDATA -> hashmod(key.hashCode(), hashMask);
-			default -> hashpow2(key.hashCode(), hashMask);
+			case TNUMBER, TTABLE, TTHREAD, TLIGHTUSERDATA, TUSERDATA -> true;
+			default -> false;
 		};
 	}
 
@@ -420,14 +550,82 @@ public final class LuaTable extends LuaValue {
 	 * @return slot to use
 	 */
 	private int hashSlot(LuaValue key) {
-		return hashSlot(key, nodes.length - 1);
+		return hashSlot(key, keys.length - 1);
 	}
 
-	private void dropWeakArrayValues() {
-		for (int i = 0; i < array.length; ++i) {
-			Object x = array[i];
-			if (x != NIL && strengthen(x).isNil()) array[i] = NIL;
+	private int arrayLength() {
+		double[] numbers = this.numbers;
+		return numbers != null ? numbers.length : array.length;
+	}
+
+	private LuaValue arrayGet(int index) {
+		double[] numbers = this.numbers;
+		return numbers != null ? readNumber(numbers, index) : strengthen(array[index]);
+	}
+
+	private boolean isArrayNil(int index) {
+		double[] numbers = this.numbers;
+		return numbers != null ? Double.doubleToRawLongBits(numbers[index]) == NIL_NUMBER_BITS : strengthen(array[index]).isNil();
+	}
+
+	private void arraySet(int index, LuaValue value) {
+		int border = this.border;
+		if (border >= 0) {
+			if (value == NIL) {
+				if (index == border - 1) {
+					this.border = index;
+				} else if (index < border) {
+					this.border = -1;
+				}
+			} else if (index == border) {
+				this.border = border + 1;
+			} else if (index > border) {
+				this.border = -1;
+			}
+		}
+
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			if (value instanceof LuaNumber || value == NIL) {
+				numbers[index] = toNumber(value);
+				return;
+			}
+
+			unpackNumbers();
 		}
+
+		array[index] = weakValues ? weaken(value, index + 1) : value;
+	}
+
+	private LuaValue readNumber(double[] numbers, int index) {
+		LuaValue value = fromNumber(numbers[index]);
+		if (++numberReads >= numbers.length) unpackNumbers();
+		return value;
+	}
+
+	private static LuaValue fromNumber(double value) {
+		return Double.doubleToRawLongBits(value) == NIL_NUMBER_BITS ? NIL : valueOf(value);
+	}
+
+	private static double toNumber(LuaValue value) {
+		if (value == NIL) return NIL_NUMBER;
+
+		double number = value.toDouble();
+		return Double.isNaN(number) ? Double.NaN : number;
+	}
+
+	/**
+	 * Convert the array part from {@link #numbers} back to {@link #array}.
+	 */
+	private void unpackNumbers() {
+		double[] numbers = this.numbers;
+		assert numbers != null;
+
+		Object[] array = new Object[numbers.length];
+		for (int i = 0; i < numbers.length; i++) array[i] = fromNumber(numbers[i]);
+
+		this.array = array;
+		this.numbers = null;
 	}
 
 	// Compute ceil(log2(x))
@@ -438,24 +636,60 @@ public final class LuaTable extends LuaValue {
 	//region Resizing
 
 	/**
-	 * Resize the table
+	 * Resize the array part of the table, copying across any values which still fit.
+	 * <p>
+	 * If the array part only contains numbers (and at least one number), then it is stored as a {@code double[]}.
 	 */
-	private static Object[] setArrayVector(Object[] oldArray, int n, boolean metaChange, boolean weakValues) {
-		Object[] newArray = new Object[n];
-		int len = Math.min(n, oldArray.length);
-		if (metaChange) {
-			for (int i = 0; i < len; i++) {
-				LuaValue value = strengthen(oldArray[i]);
-				newArray[i] = weakValues ? weaken(value) : value;
+	private void setArrayVector(int n, boolean metaChange) {
+		Object[] oldArray = array;
+		double[] oldNumbers = numbers;
+		int len = Math.min(n, arrayLength());
+
+		if (n > 0 && (oldNumbers != null || isNumeric(oldArray, len))) {
+			double[] newNumbers = new double[n];
+			if (oldNumbers != null) {
+				System.arraycopy(oldNumbers, 0, newNumbers, 0, len);
+			} else {
+				for (int i = 0; i < len; i++) newNumbers[i] = toNumber(strengthen(oldArray[i]));
 			}
+
+			// Fill remaining entries with nil
+			Arrays.fill(newNumbers, len, n, NIL_NUMBER);
+
+			array = EMPTY_ARRAY;
+			numbers = newNumbers;
+			numberReads = 0;
 		} else {
-			System.arraycopy(oldArray, 0, newArray, 0, Math.min(n, oldArray.length));
+			Object[] newArray = new Object[n];
+			if (metaChange) {
+				for (int i = 0; i < len; i++) {
+					LuaValue value = strengthen(oldArray[i]);
+					newArray[i] = weakValues ? weaken(value, i + 1) : value;
+				}
+			} else {
+				System.arraycopy(oldArray, 0, newArray, 0, len);
+			}
+
+			// Fill remaining entries with nil
+			Arrays.fill(newArray, len, n, NIL);
+
+			array = newArray;
+			numbers = null;
 		}
+	}
 
-		// Fill remaining entries with nil
-		for (int i = oldArray.length; i < newArray.length; i++) newArray[i] = NIL;
+	private static boolean isNumeric(Object[] array, int length) {
+		boolean any = false;
+		for (int i = 0; i < length; i++) {
+			LuaValue value = strengthen(array[i]);
+			if (value instanceof LuaNumber) {
+				any = true;
+			} else if (value != NIL) {
+				return false;
+			}
+		}
 
-		return newArray;
+		return any;
 	}
 
 	private static int countInt(LuaValue key, int[] nums) {
@@ -482,14 +716,13 @@ public final class LuaTable extends LuaValue {
 		for (lg = 0, ttlg = 1; lg <= 31; lg++, ttlg *= 2) {
 			int lc = 0;
 			int lim = ttlg;
-			if (lim > array.length) {
-				lim = array.length; // Adjust upper limit
+			if (lim > arrayLength()) {
+				lim = arrayLength(); // Adjust upper limit
 				if (i > lim) break;
 			}
 
 			for (; i <= lim; i++) {
-				LuaValue value = strengthen(array[i - 1]);
-				if (!value.isNil()) lc++;
+				if (!isArrayNil(i - 1)) lc++;
 			}
 			nums[lg] += lc;
 			ause += lc;
@@ -498,66 +731,112 @@ public final class LuaTable extends LuaValue {
 		return ause;
 	}
 
-	private void setNodeVector(int size) {
+	private void setHashVector(int size) {
+		stamp++;
+		shape = null;
 		if (size == 0) {
-			nodes = EMPTY_NODES;
+			keys = values = EMPTY_ARRAY;
+			next = EMPTY_NEXT;
 			lastFree = 0;
 		} else {
 			int lsize = log2(size);
 			size = 1 << lsize;
-			Node[] nodes = this.nodes = new Node[size];
-			for (int i = 0; i < size; i++) nodes[i] = new Node(weakKeys, weakValues);
+			Arrays.fill(values = new Object[size], NIL);
 
-			// All positions are free
-			lastFree = size - 1;
+			Shape root = weakKeys || weakValues ? null : Shape.root(lsize);
+			if (root != null) {
+				setShape(root);
+			} else {
+				Arrays.fill(keys = new Object[size], NIL);
+				Arrays.fill(next = new int[size], -1);
+
+				// All positions are free
+				lastFree = size - 1;
+			}
 		}
 	}
 
+	private void setShape(Shape shape) {
+		this.shape = shape;
+		keys = shape.keys;
+		next = shape.next;
+		lastFree = shape.lastFree;
+	}
+
+	/**
+	 * Take a copy of this table's hash part, so it can be modified.
+	 */
+	private void unshare() {
+		shape = null;
+		keys = keys.clone();
+		next = next.clone();
+	}
+
 	private void resize(int newArraySize, int newHashSize, boolean modeChange) {
-		int oldArraySize = array.length;
-		int oldHashSize = nodes.length;
+		int oldArraySize = arrayLength();
+		int oldHashSize = keys.length;
 
 		if (newArraySize != 0 && newHashSize != 0 && newArraySize == oldArraySize && newHashSize == oldHashSize && !modeChange) {
 			throw new IllegalStateException("Attempting to resize with no change");
 		}
 
 		// Array part must grow
-		if (newArraySize > oldArraySize) {
-			array = setArrayVector(array, newArraySize, modeChange, weakValues);
-		}
+		if (newArraySize > oldArraySize) setArrayVector(newArraySize, modeChange);
 
-		Node[] oldNode = nodes;
-		setNodeVector(newHashSize);
+		Object[] oldKeys = keys, oldValues = values;
+		setHashVector(newHashSize);
 
 		if (newArraySize < oldArraySize) {
 			Object[] oldArray = array;
-			array = setArrayVector(oldArray, newArraySize, modeChange, weakValues);
+			double[] oldNumbers = numbers;
+			setArrayVector(newArraySize, modeChange);
 
 			// Copy values out of array part into the hash
 			for (int i = newArraySize; i < oldArraySize; i++) {
-				LuaValue value = strengthen(oldArray[i]);
+				LuaValue value = oldNumbers != null ? fromNumber(oldNumbers[i]) : strengthen(oldArray[i]);
 				if (!value.isNil()) rawset(i + 1, value);
 			}
 
-		} else if (newArraySize == oldArraySize && modeChange) {
+		} else if (newArraySize == oldArraySize && modeChange && numbers == null) {
 			Object[] values = array;
 			for (int i = 0; i < oldArraySize; i++) {
 				LuaValue value = strengthen(values[i]);
-				values[i] = weakValues ? weaken(value) : value;
+				values[i] = weakValues ? weaken(value, i + 1) : value;
 			}
 		}
 
-		// Re-insert elements from hash part
+		// Re-insert elements from hash part. The weak mode may have changed, so always strengthen the old entries.
 		for (int i = oldHashSize - 1; i >= 0; i--) {
-			Node old = oldNode[i];
-			LuaValue key = old.key();
-			LuaValue value = old.value();
+			LuaValue key = strengthen(oldKeys[i]);
+			LuaValue value = strengthen(oldValues[i]);
 			if (!key.isNil() && !value.isNil()) rawset(key, value);
 		}
+
+		updateBorder();
+	}
+
+	private void updateBorder() {
+		if (weakValues) {
+			border = -1;
+			return;
+		}
+
+		int length = arrayLength(), i = 0;
+		while (i < length && !isArrayNil(i)) i++;
+
+		int border = i;
+		for (; i < length; i++) {
+			if (!isArrayNil(i)) {
+				border = -1;
+				break;
+			}
+		}
+
+		this.border = border;
 	}
 
 	private void rehash(LuaValue extraKey, boolean mode) {
-		if (weakValues) dropWeakArrayValues();
+		expungeWeakEntries();
 
 		int[] nums = new int[32]; // Counts for various functions
 		int arraySize = 0; // Optimal size for array part
@@ -567,10 +846,9 @@ public final class LuaTable extends LuaValue {
 		// Count the number of hash values that can be moved to the array, as well as the total count.
 		// See numusehash in ltable.c
 		{
-			int i = nodes.length;
+			int i = keys.length;
 			while (--i >= 0) {
-				Node node = nodes[i];
-				LuaValue key = node.key();
+				LuaValue key = strengthen(keys[i]);
 				if (!key.isNil()) {
 					arrayCount += countInt(key, nums);
 					totalCount++;
@@ -619,12 +897,9 @@ public final class LuaTable extends LuaValue {
 	 * @return The first slot in the map
 	 */
 	private int getFreePos() {
-		if (nodes.length == 0) return -1;
+		if (keys.length == 0) return -1;
 		while (lastFree >= 0) {
-			Node last = nodes[lastFree--];
-			if (last.key == NIL) {
-				return lastFree + 1;
-			}
+			if (keys[lastFree--] == NIL) return lastFree + 1;
 		}
 
 		return -1;
@@ -633,139 +908,260 @@ public final class LuaTable extends LuaValue {
 	/**
 	 * Insert a new key into a hash table.
 	 * <p>
-	 * First check whether key's main position is free. If not, check whether the colliding node is in its main position
-	 * or not. If it is not, move colliding node to an empty place and put new key in its main position, otherwise the
-	 * colliding node is in its main position and the new key goes to an empty position.
+	 * First check whether key's main position is free. If not, check whether the colliding key is in its main position
+	 * or not. If it is not, move colliding key to an empty place and put new key in its main position, otherwise the
+	 * colliding key is in its main position and the new key goes to an empty position.
 	 *
 	 * @param key The key to set
+	 * @return The slot the key was inserted at, or {@code -1} if the table was rehashed instead.
 	 * @throws IllegalArgumentException If this key cannot be used.
 	 */
-	private Node newKey(LuaValue key) {
+	private int newKey(LuaValue key) {
 		if (key.isNil()) throw new IllegalArgumentException("table index is nil");
+		stamp++;
+
+		// Clear any collected entries, so their slots can be reused.
+		if (referenceQueue != null) expungeWeakEntries();
 
 		// Rehash and let the rawgetter handle it
-		if (nodes.length == 0) {
+		if (keys.length == 0) {
 			rehash(key, false);
-			return null;
+			return -1;
 		}
 
-		Node mainNode = nodes[hashSlot(key)];
-		LuaValue mainKey = mainNode.key();
-		if (!mainKey.isNil() && !mainNode.value().isNil()) {
+		// If another table with this shape has already added this key, reuse its layout.
+		Shape shape = this.shape;
+		if (shape != null) {
+			Shape child = shape.get(key);
+			if (child != null) {
+				if (child.movedTo >= 0) {
+					values[child.movedTo] = values[child.slot];
+					values[child.slot] = NIL;
+				}
+				setShape(child);
+				return child.slot;
+			}
+
+			unshare();
+		}
+
+		// Shapes are shared between all tables (and Lua states), so we must never write to their keys.
+		assert this.shape == null : "Modifying a shared hash part";
+
+		int movedTo = -1;
+		int mainPos = hashSlot(key);
+		LuaValue mainKey = key(mainPos);
+		if (!mainKey.isNil() && !value(mainPos).isNil()) {
 			// If we've got a collision then
 			final int freePos = getFreePos();
 
 			if (freePos < 0) {
 				rehash(key, false);
-				return null;
+				return -1;
 			}
 
-			final Node freeNode = nodes[freePos];
-
 			int otherPos = hashSlot(mainKey);
-			Node otherNode = nodes[otherPos];
 
-			if (otherNode != mainNode) {
-				// If the colliding position isn't at its main position then we move it to a free position
+			if (otherPos != mainPos) {
+				// If the colliding key isn't at its main position then we move it to a free position
 
-				// Walk the chain to find the node just before the desired one
-				while (nodes[otherNode.next] != mainNode) {
-					otherNode = nodes[otherNode.next];
-				}
+				// Walk the chain to find the slot just before the desired one
+				while (next[otherPos] != mainPos) otherPos = next[otherPos];
 
 				// Rechain other to point to the free position
-				otherNode.next = freePos;
-
-				// Copy colliding node into free position
-				freeNode.key = mainNode.key;
-				freeNode.value = mainNode.value;
-				freeNode.next = mainNode.next;
-
-				// Clear main node
-				mainNode.next = -1;
-				mainNode.key = NIL;
-				mainNode.value = NIL;
+				next[otherPos] = freePos;
+
+				// Copy colliding key into free position
+				keys[freePos] = keys[mainPos];
+				values[freePos] = values[mainPos];
+				next[freePos] = next[mainPos];
+
+				// Clear main slot
+				next[mainPos] = -1;
+				keys[mainPos] = NIL;
+				values[mainPos] = NIL;
+				movedTo = freePos;
 			} else {
-				// Colliding node is in the main position so we will assign to a free position.
+				// Colliding key is in the main position so we will assign to a free position.
 
-				if (mainNode.next != -1) {
-					// We're inserting "after" the first node in the linked list so change the
-					// next node.
-					freeNode.next = mainNode.next;
+				if (next[mainPos] != -1) {
+					// We're inserting "after" the first key in the chain so change the next slot.
+					next[freePos] = next[mainPos];
 				} else {
-					assert freeNode.next == -1;
+					assert next[freePos] == -1;
 				}
 
-				// Insert after the main node
-				mainNode.next = freePos;
+				// Insert after the main slot
+				next[mainPos] = freePos;
 
-				mainNode = freeNode;
+				mainPos = freePos;
 			}
 		}
 
-		mainNode.key = weakKeys ? weaken(key) : key;
+		keys[mainPos] = weakKeys ? weaken(key, key) : key;
+
+		// Share this layout with other tables which add the same key.
+		if (shape != null) {
+			Shape child = shape.add(key, keys, next, lastFree, mainPos, movedTo);
+			if (child != null) setShape(child);
+		}
 
-		return mainNode;
+		return mainPos;
 	}
 
-	private Node getNode(int search) {
-		if (nodes.length == 0) return null;
+	/**
+	 * Get the key in a slot of the hash part, converting it to a strong reference if required. If the key has been
+	 * collected, then this clears the slot's value (marking it as "dead"), but preserves the key so the chain is intact.
+	 *
+	 * @param slot The slot in the hash part.
+	 * @return The slot's key.
+	 */
+	private LuaValue key(int slot) {
+		Object key = keys[slot];
+		if (key == NIL || !weakKeys) return (LuaValue) key;
 
-		Node node = nodes[hashmod(search, nodes.length - 1)];
+		LuaValue strengthened = strengthen(key);
+		if (strengthened.isNil()) values[slot] = NIL;
+		return strengthened;
+	}
+
+	/**
+	 * Get the value in a slot of the hash part, converting it to a strong reference if required. Collected values are
+	 * left in place until {@linkplain #expungeWeakEntries() expunged}.
+	 *
+	 * @param slot The slot in the hash part.
+	 * @return The slot's value.
+	 */
+	private LuaValue value(int slot) {
+		Object value = values[slot];
+		if (value == NIL || !weakValues) return (LuaValue) value;
+		return strengthen(value);
+	}
+
+	private void setValue(int slot, LuaValue value) {
+		// Inserting a key depends on which values are nil, so shapes require all keys to have a value.
+		if (value == NIL && shape != null) unshare();
+		values[slot] = weakValues ? weaken(value, key(slot)) : value;
+	}
+
+	private int getSlot(int search) {
+		if (keys.length == 0) return -1;
+
+		int slot = hashmod(search, keys.length - 1);
 		while (true) {
-			LuaValue key = node.key();
-			if (key instanceof LuaInteger keyI && keyI.v == search) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
+			if (key(slot) instanceof LuaInteger keyI && keyI.v == search) return slot;
+
+			slot = next[slot];
+			if (slot == -1) return -1;
 		}
 	}
 
-	private Node getNode(LuaValue search) {
-		if (nodes.length == 0 || search == NIL) return null;
+	private int getSlot(LuaValue search) {
+		if (keys.length == 0 || search == NIL) return -1;
 
 		int slot = hashSlot(search);
-		Node node = nodes[slot];
 		while (true) {
-			LuaValue key = node.key();
-			if (key.equals(search)) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
+			if (key(slot).equals(search)) return slot;
+
+			slot = next[slot];
+			if (slot == -1) return -1;
 		}
 	}
 
+	/**
+	 * Find the slot for a string key, using a previously cached position in the hash part.
+	 *
+	 * @param key   The key to find.
+	 * @param cache The inline cache holding the key's last known position.
+	 * @param index The index into the inline cache.
+	 * @return The slot, or {@code -1} if the key is not present.
+	 * @see Prototype#inlineCache
+	 */
+	private int getSlotCached(LuaString key, int[] cache, int index) {
+		int slot = cache[index];
+		if (slot < keys.length && key.equals(keys[slot])) return slot;
+
+		slot = getSlot(key);
+		if (slot >= 0) cache[index] = slot;
+		return slot;
+	}
+
 	public LuaValue rawget(int search) {
-		if (search > 0 && search <= array.length) {
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			if (search > 0 && search <= numbers.length) return readNumber(numbers, search - 1);
+		} else if (search > 0 && search <= array.length) {
 			return strengthen(array[search - 1]);
-		} else if (nodes.length == 0) {
-			return NIL;
-		} else {
-			Node node = getNode(search);
-			return node == null ? NIL : node.value();
 		}
+
+		if (keys.length == 0) return NIL;
+
+		int slot = getSlot(search);
+		return slot < 0 ? NIL : value(slot);
 	}
 
 	public LuaValue rawget(LuaValue search) {
 		if (search instanceof LuaInteger) return rawget(((LuaInteger) search).v);
 
-		Node node = getNode(search);
-		return node == null ? NIL : node.value();
+		int slot = getSlot(search);
+		return slot < 0 ? NIL : value(slot);
+	}
+
+	/**
+	 * Get a string key from this table, using an inline cache to avoid hashing the key.
+	 *
+	 * @param key   The key to find.
+	 * @param cache The inline cache holding the key's last known position.
+	 * @param index The index into the inline cache.
+	 * @return The value for this key, or {@link Constants#NIL}.
+	 * @see OperationHelper#getTable(LuaState, LuaValue, LuaString, int[], int, int)
+	 */
+	LuaValue rawget(LuaString key, int[] cache, int index) {
+		int slot = getSlotCached(key, cache, index);
+		return slot < 0 ? NIL : value(slot);
+	}
+
+	/**
+	 * Get a string key from this table, using a cache of the key's slot. This is intended for global variable lookups,
+	 * where the same key is repeatedly read from the same table.
+	 *
+	 * @param key   The key to find.
+	 * @param cache The cache of slots.
+	 * @param index The index into the cache.
+	 * @return The value for this key, or {@link Constants#NIL}.
+	 * @see OperationHelper#getGlobal(LuaState, LuaTable, LuaString, Object[], int)
+	 */
+	LuaValue rawget(LuaString key, Object[] cache, int index) {
+		int slot = getSlotCached(key, cache, index);
+		return slot < 0 ? NIL : value(slot);
+	}
+
+	private int getSlotCached(LuaString key, Object[] cache, int index) {
+		@Nullable CachedSlot cached = cache[index] instanceof CachedSlot c && c.table.refersTo(this) ? c : null;
+		if (cached != null) {
+			long position = cached.position;
+			if ((int) (position >>> 32) == stamp) return (int) position;
+		}
+
+		int slot = getSlot(key);
+		if (slot >= 0) {
+			// Reuse the existing entry if this is the same table, so repeated misses do not allocate.
+			if (cached != null) {
+				cached.set(stamp, slot);
+			} else {
+				cache[index] = new CachedSlot(this, stamp, slot);
+			}
+		}
+		return slot;
 	}
 
 	public LuaValue rawget(CachedMetamethod search) {
 		int flag = 1 << search.ordinal();
 		if ((metatableFlags & flag) != 0) return NIL;
 
-		Node node = getNode(search.getKey());
-		if (node != null) {
-			LuaValue value = node.value();
+		int slot = getSlot(search.getKey());
+		if (slot >= 0) {
+			LuaValue value = value(slot);
 			if (!value.isNil()) return value;
 		}
 
@@ -791,19 +1187,19 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private boolean trySet(int key, LuaValue value, LuaValue keyValue) {
-		if (key > 0 && key <= array.length) {
+		if (key > 0 && key <= arrayLength()) {
 			// If value is absent and we've got a __newindex method, don't insert.
-			if (strengthen(array[key - 1]) == NIL && hasNewIndex()) return false;
-			array[key - 1] = weakValues ? weaken(value) : value;
+			if (isArrayNil(key - 1) && hasNewIndex()) return false;
+			arraySet(key - 1, value);
 			return true;
 		}
 
-		Node node = getNode(key);
-		if (node == null) {
+		int slot = getSlot(key);
+		if (slot < 0) {
 			if (hasNewIndex()) return false;
 		} else {
-			if (node.value() == NIL && hasNewIndex()) return false;
-			node.value = weakValues ? weaken(value) : value;
+			if (value(slot) == NIL && hasNewIndex()) return false;
+			setValue(slot, value);
 			return true;
 		}
 
@@ -823,12 +1219,12 @@ public final class LuaTable extends LuaValue {
 	boolean trySet(LuaValue key, LuaValue value) throws LuaError {
 		if (key instanceof LuaInteger keyI) return trySet(keyI.v, value, key);
 
-		Node node = getNode(key);
-		if (node == null) {
+		int slot = getSlot(key);
+		if (slot < 0) {
 			if (hasNewIndex()) return false;
 		} else {
-			if (node.value() == NIL && hasNewIndex()) return false;
-			node.value = weakValues ? weaken(value) : value;
+			if (value(slot) == NIL && hasNewIndex()) return false;
+			setValue(slot, value);
 			return true;
 		}
 
@@ -838,26 +1234,66 @@ public final class LuaTable extends LuaValue {
 		return true;
 	}
 
+	/**
+	 * Set a string key in this table if the key is already present or if there is no metamethod, using an inline
+	 * cache to avoid hashing the key.
+	 *
+	 * @param key   The key to set.
+	 * @param value The value to set.
+	 * @param cache The inline cache holding the key's last known position.
+	 * @param index The index into the inline cache.
+	 * @return {@code true} if the table was updated. If {@code false}, the table's metamethod should be invoked.
+	 * @see OperationHelper#setTable(LuaState, LuaValue, LuaString, LuaValue, int[], int, int)
+	 */
+	boolean trySet(LuaString key, LuaValue value, int[] cache, int index) throws LuaError {
+		int slot = getSlotCached(key, cache, index);
+		if (slot < 0) return trySet(key, value);
+
+		if (value(slot) == NIL && hasNewIndex()) return false;
+		setValue(slot, value);
+		return true;
+	}
+
+	/**
+	 * Set a string key in this table if the key is already present or if there is no metamethod, using a cache of
+	 * the key's slot.
+	 *
+	 * @param key   The key to set.
+	 * @param value The value to set.
+	 * @param cache The cache of slots.
+	 * @param index The index into the cache.
+	 * @return {@code true} if the table was updated. If {@code false}, the table's metamethod should be invoked.
+	 * @see OperationHelper#setGlobal(LuaState, LuaTable, LuaString, LuaValue, Object[], int)
+	 */
+	boolean trySet(LuaString key, LuaValue value, Object[] cache, int index) throws LuaError {
+		int slot = getSlotCached(key, cache, index);
+		if (slot < 0) return trySet(key, value);
+
+		if (value(slot) == NIL && hasNewIndex()) return false;
+		setValue(slot, value);
+		return true;
+	}
+
 	public void rawset(int key, LuaValue value) {
 		rawset(key, value, null);
 	}
 
 	private void rawset(int key, LuaValue value, LuaValue valueOf) {
 		do {
-			if (key > 0 && key <= array.length) {
-				array[key - 1] = weakValues ? weaken(value) : value;
+			if (key > 0 && key <= arrayLength()) {
+				arraySet(key - 1, value);
 				return;
 			}
 
-			Node node = getNode(key);
-			if (node == null) {
+			int slot = getSlot(key);
+			if (slot < 0) {
 				if (valueOf == null) valueOf = valueOf(key);
-				node = newKey(valueOf);
+				slot = newKey(valueOf);
 			}
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				node.value = weakValues ? weaken(value) : value;
+			if (slot >= 0) {
+				setValue(slot, value);
 				return;
 			}
 		} while (true);
@@ -872,13 +1308,12 @@ public final class LuaTable extends LuaValue {
 		// TODO: Check valid key here instead of at the call site!
 
 		do {
-			Node node = getNode(key);
-			if (node == null) node = newKey(key);
+			int slot = getSlot(key);
+			if (slot < 0) slot = newKey(key);
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
+			if (slot >= 0) {
+				setValue(slot, value);
 				metatableFlags = 0;
 				return;
 			}
@@ -889,25 +1324,92 @@ public final class LuaTable extends LuaValue {
 	//region Weak references
 
 	/**
-	 * Self-sent message to convert a value to its weak counterpart
+	 * Convert a value to its weak counterpart, registering it with this table's {@link #referenceQueue}.
 	 *
 	 * @param value value to convert
+	 * @param key   the key this value (or key) is stored under, used to find the entry once it is collected.
 	 * @return {@link LuaValue} that is a strong or weak reference, depending on type of {@code value}
 	 */
-	private static Object weaken(LuaValue value) {
+	private Object weaken(LuaValue value, LuaValue key) {
+		if (key instanceof LuaInteger keyI) return weaken(value, keyI.v);
+		return weaken(value, key.hashCode(), usesHashMod(key), false);
+	}
+
+	private Object weaken(LuaValue value, int key) {
+		return weaken(value, key, true, true);
+	}
+
+	private Object weaken(LuaValue value, int hash, boolean hashMod, boolean integerKey) {
 		return switch (value.type()) {
-			case TFUNCTION, TTHREAD, TTABLE -> new WeakReference<>(value);
-			case TUSERDATA -> new WeakUserdata((LuaUserdata) value);
+			case TFUNCTION, TTHREAD, TTABLE -> new WeakEntry<>(value, referenceQueue, hash, hashMod, integerKey);
+			case TUSERDATA ->
+				new WeakUserdata((LuaUserdata) value, new WeakEntry<>(((LuaUserdata) value).instance, referenceQueue, hash, hashMod, integerKey));
 			default -> value;
 		};
 	}
 
+	/**
+	 * Clear any entries whose weak key or value has been collected.
+	 * <p>
+	 * Rather than scanning the whole table, this only visits entries whose references have been enqueued by the
+	 * garbage collector. Collected keys are left in the hash part (so the chains are intact) but their values are
+	 * cleared, and so will be dropped on the next rehash.
+	 */
+	private void expungeWeakEntries() {
+		ReferenceQueue<Object> queue = referenceQueue;
+		if (queue == null) return;
+
+		Reference<?> reference;
+		while ((reference = queue.poll()) != null) {
+			if (clearEntry((WeakEntry<?>) reference)) reclaimedEntries++;
+		}
+	}
+
+	private boolean clearEntry(WeakEntry<?> reference) {
+		Object entry = reference.entry;
+
+		if (reference.integerKey) {
+			int index = reference.hash - 1;
+			if (index >= 0 && index < array.length && array[index] == entry) {
+				array[index] = NIL;
+				return true;
+			}
+		}
+
+		if (keys.length == 0) return false;
+
+		int mask = keys.length - 1;
+		int slot = reference.hashMod ? hashmod(reference.hash, mask) : hashpow2(reference.hash, mask);
+		do {
+			if (keys[slot] == entry || values[slot] == entry) {
+				values[slot] = NIL;
+				return true;
+			}
+
+			slot = next[slot];
+		} while (slot >= 0);
+
+		return false;
+	}
+
+	/**
+	 * Get the number of entries which have been removed from this table as their weak key or value was collected.
+	 * <p>
+	 * This only counts entries which were removed by the garbage collector. Collected entries which were overwritten or
+	 * skipped over before being removed are not included.
+	 *
+	 * @return The number of collected entries.
+	 */
+	public long getReclaimedEntries() {
+		return reclaimedEntries;
+	}
+
 	/**
 	 * Unwrap a LuaValue from a WeakReference and/or WeakUserdata.
 	 *
 	 * @param ref reference to convert
 	 * @return LuaValue or null
-	 * @see #weaken(LuaValue)
+	 * @see #weaken(LuaValue, LuaValue)
 	 */
 	@SuppressWarnings("unchecked")
 	static LuaValue strengthen(Object ref) {
@@ -929,9 +1431,10 @@ public final class LuaTable extends LuaValue {
 		private final WeakReference<Object> ob;
 		private final LuaTable mt;
 
-		private WeakUserdata(LuaUserdata value) {
+		private WeakUserdata(LuaUserdata value, WeakEntry<Object> ob) {
 			ref = new WeakReference<>(value);
-			ob = new WeakReference<>(value.instance);
+			this.ob = ob;
+			ob.entry = this;
 			mt = value.metatable;
 		}
 
@@ -949,59 +1452,194 @@ public final class LuaTable extends LuaValue {
 			}
 		}
 	}
+
+	/**
+	 * A weak reference stored in a table, which remembers enough about its key to find it again once collected.
+	 *
+	 * @param <T> The type of the referenced object.
+	 * @see #expungeWeakEntries()
+	 */
+	private static final class WeakEntry<T> extends WeakReference<T> {
+		final int hash;
+		final boolean hashMod;
+		final boolean integerKey;
+
+		/**
+		 * The object stored in the table. This is either this reference, or the {@link WeakUserdata} which owns it.
+		 */
+		Object entry = this;
+
+		WeakEntry(T referent, @Nullable ReferenceQueue<Object> queue, int hash, boolean hashMod, boolean integerKey) {
+			super(referent, queue);
+			this.hash = hash;
+			this.hashMod = hashMod;
+			this.integerKey = integerKey;
+		}
+	}
 	//endregion
 
 	/**
-	 * Represents a node in the hash element of the table.
+	 * The slot for a key in a specific table.
+	 * <p>
+	 * This is valid as long as the table's {@link #stamp} has not changed. The table is held weakly, so a cache does
+	 * not keep it alive.
+	 * <p>
+	 * The stamp and slot are stored in a single volatile field, and the table never changes, so this may be safely
+	 * shared between threads.
 	 */
-	private static final class Node {
-		private final boolean weakKey;
-		private final boolean weakValue;
-		Object value = NIL;
-		Object key = NIL;
-		int next = -1;
+	private static final class CachedSlot {
+		final WeakReference<LuaTable> table;
 
-		Node(boolean weakKey, boolean weakValue) {
-			this.weakKey = weakKey;
-			this.weakValue = weakValue;
+		/**
+		 * The table's stamp when the key was looked up (upper 32 bits) and the key's slot in the hash part (lower 32
+		 * bits).
+		 */
+		volatile long position;
+
+		CachedSlot(LuaTable table, int stamp, int slot) {
+			this.table = new WeakReference<>(table);
+			set(stamp, slot);
 		}
 
-		@Override
-		public String toString() {
-			String main = key + "=" + value;
-			if (next >= 0) main += "->" + next;
-			return main;
+		void set(int stamp, int slot) {
+			position = ((long) stamp << 32) | slot;
 		}
+	}
+
+	/**
+	 * The layout of a hash part which only contains short string keys. This is shared between all tables which had
+	 * the same keys inserted in the same order, so each table only needs to store its values.
+	 * <p>
+	 * A shape's keys and chains are never modified. Instead, adding a key to a table moves it to a child shape. Tables
+	 * go back to having their own hash part when a value is set to nil, or when a key which cannot be part of a shape
+	 * is added.
+	 * <p>
+	 * As all tables with the same shape store a key in the same slot, a {@linkplain Prototype#inlineCache slot cache}
+	 * filled by one table can be used for any other table of that shape.
+	 */
+	private static final class Shape {
+		private static final int MAX_SIZE_LOG = 5;
+		private static final int MAX_KEY_LENGTH = 32;
+		private static final int MAX_TRANSITIONS = 16;
 
 		/**
-		 * Get the current key, converting it to a strong reference if
-		 * required. If it is nil then it clears the key and value (marking it
-		 * as "dead").
-		 *
-		 * @return The entry's key.
+		 * The maximum number of live shapes. Shapes are held weakly by their parent, and so are freed once no table
+		 * uses them or any of their children.
+		 */
+		private static final int MAX_SHAPES = 1 << 14;
+		private static final AtomicInteger shapes = new AtomicInteger();
+		private static final ReferenceQueue<Shape> reclaimed = new ReferenceQueue<>();
+
+		private static final Shape[] roots = new Shape[MAX_SIZE_LOG + 1];
+
+		static {
+			for (int i = 0; i <= MAX_SIZE_LOG; i++) {
+				int size = 1 << i;
+				Object[] keys = new Object[size];
+				Arrays.fill(keys, NIL);
+				int[] next = new int[size];
+				Arrays.fill(next, -1);
+				roots[i] = new Shape(null, keys, next, size - 1, -1, -1);
+			}
+		}
+
+		/**
+		 * The shape this one was created from. This keeps our parent alive while any table has this shape, so tables
+		 * which add the same keys continue to share it.
+		 */
+		private final @Nullable Shape parent;
+
+		final Object[] keys;
+		final int[] next;
+		final int lastFree;
+
+		/**
+		 * The slot of the last key added to this shape.
+		 */
+		final int slot;
+
+		/**
+		 * The slot the value in {@link #slot} was moved to when adding the last key, or {@code -1}.
 		 */
-		LuaValue key() {
-			Object key = this.key;
-			if (key == NIL || !weakKey) return (LuaValue) key;
+		final int movedTo;
+
+		private final Map<LuaString, Transition> transitions = new ConcurrentHashMap<>();
 
-			LuaValue strengthened = strengthen(key);
-			if (strengthened.isNil()) this.value = NIL; // We preserve the key so we can check it is nil
+		private Shape(@Nullable Shape parent, Object[] keys, int[] next, int lastFree, int slot, int movedTo) {
+			this.parent = parent;
+			this.keys = keys;
+			this.next = next;
+			this.lastFree = lastFree;
+			this.slot = slot;
+			this.movedTo = movedTo;
+		}
+
+		static @Nullable Shape root(int sizeLog) {
+			return sizeLog <= MAX_SIZE_LOG ? roots[sizeLog] : null;
+		}
 
-			return strengthened;
+		@Nullable Shape get(LuaValue key) {
+			if (!(key instanceof LuaString string)) return null;
+			Transition transition = transitions.get(string);
+			return transition == null ? null : transition.get();
 		}
 
 		/**
-		 * Get the current value, converting it to a strong reference if required.
+		 * Create a child of this shape from a table which has just added a key.
 		 *
-		 * @return The entry's value.
+		 * @return The child shape, or {@code null} if this key cannot be part of a shape.
 		 */
-		LuaValue value() {
-			Object value = this.value;
-			if (value == NIL || !weakValue) return (LuaValue) value;
+		@Nullable Shape add(LuaValue key, Object[] keys, int[] next, int lastFree, int slot, int movedTo) {
+			if (!(key instanceof LuaString string) || string.length() > MAX_KEY_LENGTH) return null;
+
+			expungeShapes();
+			if (transitions.size() >= MAX_TRANSITIONS || !reserveShape()) return null;
+
+			Shape child = new Shape(this, keys, next, lastFree, slot, movedTo);
+			Transition created = new Transition(child, this, string);
+			Transition transition = transitions.compute(string, (k, old) -> old != null && !old.refersTo(null) ? old : created);
+			if (transition == created) return child;
+
+			// Another table added this key first, so use its shape instead. Clearing our transition means it will never
+			// be enqueued, so release its reservation now.
+			created.clear();
+			shapes.decrementAndGet();
+			return transition.get();
+		}
+
+		private static boolean reserveShape() {
+			int count;
+			do {
+				count = shapes.get();
+				if (count >= MAX_SHAPES) return false;
+			} while (!shapes.compareAndSet(count, count + 1));
+			return true;
+		}
 
-			LuaValue strengthened = strengthen(value);
-			if (strengthened.isNil()) this.value = NIL;
-			return strengthened;
+		/**
+		 * Remove any transitions to shapes which have been garbage collected.
+		 */
+		private static void expungeShapes() {
+			Reference<? extends Shape> reference;
+			while ((reference = reclaimed.poll()) != null) {
+				Transition transition = (Transition) reference;
+				transition.parent.transitions.remove(transition.key, transition);
+				shapes.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * A weak reference from a shape to one of its children, added when a table with the parent shape adds {@link #key}.
+	 */
+	private static final class Transition extends WeakReference<Shape> {
+		final Shape parent;
+		final LuaString key;
+
+		Transition(Shape child, Shape parent, LuaString key) {
+			super(child, Shape.reclaimed);
+			this.parent = parent;
+			this.key = key;
 		}
 	}
 }
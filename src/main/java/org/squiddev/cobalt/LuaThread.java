@@ -319,7 +319,14 @@ public final class LuaThread extends LuaValue {
 	}
 
 	private static Varargs run(final LuaState state, LuaThread thread, LuaFunction function, Varargs args) throws LuaError {
-		return loop(state, thread, function, args);
+		if (!state.javaStackTraces) return loop(state, thread, function, args);
+
+		boolean previous = LuaError.captureStackTraces(true);
+		try {
+			return loop(state, thread, function, args);
+		} finally {
+			LuaError.captureStackTraces(previous);
+		}
 	}
 
 	private static Varargs loop(final LuaState state, LuaThread thread, LuaFunction function, Varargs args) throws LuaError {
@@ -47,6 +47,12 @@ public final class OperationHelper {
 	}
 
 	public static LuaValue add(LuaState state, LuaValue left, LuaValue right, int leftIdx, int rightIdx) throws LuaError, UnwindThrowable {
+		// The result of integer arithmetic always fits in a long, and LuaInteger.valueOf(long) falls back to a double
+		// if it does not fit in an int. This gives the same result as adding the two numbers as doubles.
+		if (left instanceof LuaInteger && right instanceof LuaInteger) {
+			return valueOf((long) ((LuaInteger) left).v + (long) ((LuaInteger) right).v);
+		}
+
 		double dLeft, dRight;
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(dLeft + dRight);
@@ -60,6 +66,10 @@ public final class OperationHelper {
 	}
 
 	public static LuaValue sub(LuaState state, LuaValue left, LuaValue right, int leftIdx, int rightIdx) throws LuaError, UnwindThrowable {
+		if (left instanceof LuaInteger && right instanceof LuaInteger) {
+			return valueOf((long) ((LuaInteger) left).v - (long) ((LuaInteger) right).v);
+		}
+
 		double dLeft, dRight;
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(dLeft - dRight);
@@ -519,24 +529,105 @@ public final class OperationHelper {
 
 	public static LuaValue getTable(LuaState state, LuaValue t, LuaValue key, int stack) throws LuaError, UnwindThrowable {
 		LuaValue tm;
-		int loop = 0;
-		do {
+		if (t instanceof LuaTable table) {
+			LuaValue res = table.rawget(key);
+			if (!res.isNil() || (tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+				return res;
+			}
+		} else if ((tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+			throw ErrorFactory.operandError(state, t, "index", stack);
+		}
+
+		return getTable(state, t, tm, key, 0);
+	}
+
+	/**
+	 * Continue looking up a key, after it was not found in {@code t}.
+	 *
+	 * @param state The current lua state
+	 * @param t     The value which did not contain the key.
+	 * @param tm    The {@code __index} metatag of {@code t}. This must not be nil.
+	 * @param key   The key to look up.
+	 * @param loop  The number of {@code __index} tables we have already looked in.
+	 * @return The value for this key.
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __index} metamethod yielded.
+	 */
+	private static LuaValue getTable(LuaState state, LuaValue t, LuaValue tm, LuaValue key, int loop) throws LuaError, UnwindThrowable {
+		while (true) {
+			if (tm.isFunction()) {
+				return ((LuaFunction) tm).call(state, t, key);
+			}
+			t = tm;
+			if (++loop >= Constants.MAXTAGLOOP) throw new LuaError("loop in gettable");
+
 			if (t instanceof LuaTable table) {
 				LuaValue res = table.rawget(key);
 				if (!res.isNil() || (tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
 					return res;
 				}
 			} else if ((tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
-				throw ErrorFactory.operandError(state, t, "index", stack);
+				throw ErrorFactory.operandError(state, t, "index", -1);
 			}
-			if (tm.isFunction()) {
-				return ((LuaFunction) tm).call(state, t, key);
-			}
-			t = tm;
-			stack = -1;
 		}
-		while (++loop < Constants.MAXTAGLOOP);
-		throw new LuaError("loop in gettable");
+	}
+
+	/**
+	 * Index a value with a constant string key, using an inline cache to speed up repeated lookups.
+	 * <p>
+	 * This caches the key's position in both the table itself, and the table's {@code __index} table (if present).
+	 * If the key is not found in either, we continue following the {@code __index} chain from there, as
+	 * {@link #getTable(LuaState, LuaValue, LuaValue, int)} would.
+	 *
+	 * @param state The current lua state
+	 * @param t     The value to index.
+	 * @param key   The key to look up.
+	 * @param cache The inline cache. This holds two entries for each instruction: the key's position in the table and
+	 *              in its {@code __index} table.
+	 * @param index The index into the inline cache.
+	 * @param stack The stack slot of {@code t}, used for error messages.
+	 * @return The value for this key.
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __index} metamethod yielded.
+	 * @see Prototype#inlineCache
+	 */
+	public static LuaValue getTable(LuaState state, LuaValue t, LuaString key, int[] cache, int index, int stack) throws LuaError, UnwindThrowable {
+		if (!(t instanceof LuaTable table)) return getTable(state, t, key, stack);
+
+		LuaValue res = table.rawget(key, cache, index);
+		if (!res.isNil()) return res;
+
+		LuaValue tm = t.metatag(state, CachedMetamethod.INDEX);
+		if (tm.isNil()) return res;
+		if (!(tm instanceof LuaTable indexTable)) return getTable(state, t, tm, key, 0);
+
+		res = indexTable.rawget(key, cache, index + 1);
+		if (!res.isNil()) return res;
+
+		// Otherwise continue looking up the __index chain from the __index table.
+		LuaValue indexTm = indexTable.metatag(state, CachedMetamethod.INDEX);
+		return indexTm.isNil() ? res : getTable(state, indexTable, indexTm, key, 1);
+	}
+
+	/**
+	 * Get a global variable, caching the variable's location in the environment table.
+	 *
+	 * @param state The current lua state
+	 * @param env   The current function's environment.
+	 * @param key   The name of the global.
+	 * @param cache The cache of global locations.
+	 * @param index The index into the cache.
+	 * @return The global's value.
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __index} metamethod yielded.
+	 * @see Prototype#globalCache
+	 */
+	public static LuaValue getGlobal(LuaState state, LuaTable env, LuaString key, Object[] cache, int index) throws LuaError, UnwindThrowable {
+		LuaValue value = env.rawget(key, cache, index);
+		if (!value.isNil()) return value;
+
+		LuaValue tm = env.metatag(state, CachedMetamethod.INDEX);
+		return tm.isNil() ? value : getTable(state, env, tm, key, 0);
 	}
 
 	/**
@@ -561,6 +652,42 @@ public final class OperationHelper {
 		setTable(state, t, valueOf(key), value);
 	}
 
+	/**
+	 * Assign a field with a constant string key, using an inline cache to speed up repeated assignments.
+	 *
+	 * @param state The current lua state
+	 * @param t     The value to assign to.
+	 * @param key   The key to assign.
+	 * @param value The value to assign.
+	 * @param cache The inline cache.
+	 * @param index The index into the inline cache.
+	 * @param stack The stack slot of {@code t}, used for error messages.
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __newindex} metamethod yielded.
+	 * @see Prototype#inlineCache
+	 */
+	public static void setTable(LuaState state, LuaValue t, LuaString key, LuaValue value, int[] cache, int index, int stack) throws LuaError, UnwindThrowable {
+		if (t instanceof LuaTable table && table.trySet(key, value, cache, index)) return;
+		setTable(state, t, key, value, stack);
+	}
+
+	/**
+	 * Set a global variable, caching the variable's location in the environment table.
+	 *
+	 * @param state The current lua state
+	 * @param env   The current function's environment.
+	 * @param key   The name of the global.
+	 * @param value The value to assign.
+	 * @param cache The cache of global locations.
+	 * @param index The index into the cache.
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __newindex} metamethod yielded.
+	 * @see Prototype#globalCache
+	 */
+	public static void setGlobal(LuaState state, LuaTable env, LuaString key, LuaValue value, Object[] cache, int index) throws LuaError, UnwindThrowable {
+		if (!env.trySet(key, value, cache, index)) setTable(state, env, key, value);
+	}
+
 	public static void setTable(LuaState state, LuaValue t, LuaValue key, LuaValue value, int stack) throws LuaError, UnwindThrowable {
 		int loop = 0;
 		do {
@@ -24,9 +24,16 @@
  */
 package org.squiddev.cobalt;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.CompiledPrototype;
+import org.squiddev.cobalt.function.JvmCompiler;
 import org.squiddev.cobalt.function.LocalVariable;
 import org.squiddev.cobalt.function.LuaInterpretedFunction;
+import org.squiddev.cobalt.function.Superinstructions;
+import org.squiddev.cobalt.function.TieredCompiler;
+
+import java.lang.ref.WeakReference;
 
 /**
  * Prototype representing compiled lua code.
@@ -50,6 +57,14 @@ public final class Prototype {
 
 	public final int[] code;
 
+	/**
+	 * The instructions executed by the interpreter. This is {@link #code} with common pairs of instructions replaced
+	 * by fused superinstructions, and so should not be used for anything else.
+	 *
+	 * @see Superinstructions
+	 */
+	public final int[] instructions;
+
 	/**
 	 * Functions defined inside the function
 	 */
@@ -76,6 +91,64 @@ public final class Prototype {
 
 	public final LuaString[] upvalueNames;
 
+	/**
+	 * Inline caches for table accesses with constant string keys, with two entries per instruction.
+	 * <p>
+	 * Each entry holds the position of the key in the hash part of the table it was last found in. This is only a
+	 * hint: it is always checked before being used, and so may be shared between threads and tables.
+	 *
+	 * @see OperationHelper#getTable(LuaState, LuaValue, LuaString, int[], int, int)
+	 */
+	public final int[] inlineCache;
+
+	/**
+	 * Caches for global variable accesses, indexed by the constant holding the variable's name.
+	 * <p>
+	 * Each entry records the environment table it was looked up in, and so remains correct if the function's
+	 * environment is changed. The environment is held weakly, so this does not keep it alive.
+	 *
+	 * @see OperationHelper#getGlobal(LuaState, LuaTable, LuaString, Object[], int)
+	 */
+	public final Object[] globalCache;
+
+	/**
+	 * The JVM bytecode for this function, or {@code null} if it should be interpreted.
+	 * <p>
+	 * This may be set from a background thread by the {@link TieredCompiler}, after which the interpreter will switch
+	 * to it the next time a frame of this function is entered.
+	 *
+	 * @see JvmCompiler
+	 */
+	public volatile @Nullable CompiledPrototype compiled;
+
+	/**
+	 * The last closure created from this prototype. If {@linkplain LuaState#cacheClosures closure caching} is enabled,
+	 * this is reused when a closure with the same environment and upvalues is created again.
+	 * <p>
+	 * This is held weakly, so the cache does not keep the closure's environment or upvalues alive. The closure is fully
+	 * constructed before being stored, so it is safe to share prototypes between threads.
+	 */
+	public volatile @Nullable WeakReference<LuaInterpretedFunction> cachedClosure;
+
+	/**
+	 * The number of times this function has been called by the interpreter. This is only updated when using a
+	 * {@link TieredCompiler}, and is not synchronised - it is only an estimate. It stops being updated once this
+	 * function has been {@linkplain #compileQueued queued for compilation}.
+	 */
+	public int callCount;
+
+	/**
+	 * The number of backwards jumps this function has taken in the interpreter.
+	 *
+	 * @see #callCount
+	 */
+	public int backEdgeCount;
+
+	/**
+	 * Whether the {@link TieredCompiler} has queued this function for compilation.
+	 */
+	public volatile boolean compileQueued;
+
 	public Prototype(
 		LuaString source,
 		LuaValue[] constants, int[] code, Prototype[] children, int parameters, int isVarArg, int maxStackSize, int upvalues,
@@ -85,6 +158,7 @@ public final class Prototype {
 
 		this.constants = constants;
 		this.code = code;
+		this.instructions = Superinstructions.rewrite(code, children);
 		this.children = children;
 		this.parameters = parameters;
 		this.isVarArg = isVarArg;
@@ -97,6 +171,9 @@ public final class Prototype {
 		this.columnInfo = columnInfo;
 		this.locals = locals;
 		this.upvalueNames = upvalueNames;
+
+		this.inlineCache = new int[code.length * 2];
+		this.globalCache = new Object[constants.length];
 	}
 
 	public LuaString sourceShort() {
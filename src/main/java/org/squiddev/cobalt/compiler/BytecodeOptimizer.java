@@ -0,0 +1,334 @@
+package org.squiddev.cobalt.compiler;
+
+import org.squiddev.cobalt.Lua;
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.function.LocalVariable;
+
+import java.util.Arrays;
+
+import static org.squiddev.cobalt.Lua.*;
+import static org.squiddev.cobalt.compiler.LuaC.*;
+
+/**
+ * A simple optimisation pass over compiled bytecode, run on each {@link Prototype} after it is loaded.
+ * <p>
+ * This performs the following optimisations:
+ * <ul>
+ *   <li>Jumps to a {@link Lua#OP_JMP} are replaced with a jump to its target.</li>
+ *   <li>{@link Lua#OP_MOVE}s which copy a register to itself, or undo the previous move, are removed.</li>
+ *   <li>Adjacent {@link Lua#OP_LOADNIL}s are merged into one instruction.</li>
+ *   <li>A {@link Lua#OP_LOADK} into a temporary register which is then used as an RK operand of the next instruction
+ *   is folded into that instruction.</li>
+ *   <li>Unreachable instructions, such as those after an unconditional return, are removed.</li>
+ * </ul>
+ * <p>
+ * Removing instructions changes the program counter of later instructions, so the line information and local
+ * variable ranges are updated to match. As we do not track which registers are live, instructions are only rewritten
+ * when it is obviously safe: the register loaded by a folded {@link Lua#OP_LOADK} must be overwritten by the next
+ * instruction, and instructions are never merged across a jump target.
+ *
+ * @see LuaState.Builder#optimizeBytecode(boolean)
+ */
+public final class BytecodeOptimizer {
+	private BytecodeOptimizer() {
+	}
+
+	/**
+	 * Optimise a prototype and all its children.
+	 *
+	 * @param prototype The prototype to optimise. This is not modified.
+	 * @return The optimised prototype. This may be the original prototype if no changes could be made.
+	 */
+	public static Prototype optimize(Prototype prototype) {
+		boolean changed = false;
+		Prototype[] children = new Prototype[prototype.children.length];
+		for (int i = 0; i < children.length; i++) {
+			children[i] = optimize(prototype.children[i]);
+			if (children[i] != prototype.children[i]) changed = true;
+		}
+
+		int[] code = prototype.code.clone();
+		int length = code.length;
+		boolean[] data = findData(code, children);
+
+		changed |= threadJumps(code, data);
+
+		boolean[] targets = new boolean[length + 1], pinned = new boolean[length + 1];
+		findTargets(code, data, targets, pinned);
+		// Always keep the final instruction. This is the function's trailing return, which the debug library relies on
+		// existing, even if it cannot be reached.
+		if (length > 0) pinned[length - 1] = true;
+
+		boolean[] remove = new boolean[length];
+		changed |= peephole(prototype, code, data, targets, pinned, remove);
+		changed |= removeUnreachable(code, children, pinned, remove);
+
+		return changed ? rebuild(prototype, children, code, data, remove) : prototype;
+	}
+
+	/**
+	 * Find the words in the code which are not instructions: the upvalue descriptions following
+	 * {@link Lua#OP_CLOSURE} and the real value of C following a {@link Lua#OP_SETLIST}.
+	 */
+	private static boolean[] findData(int[] code, Prototype[] children) {
+		boolean[] data = new boolean[code.length];
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			switch (GET_OPCODE(i)) {
+				case OP_SETLIST -> {
+					if (GETARG_C(i) == 0 && pc + 1 < code.length) data[++pc] = true;
+				}
+				case OP_CLOSURE -> {
+					int index = GETARG_Bx(i);
+					int upvalues = index < children.length ? children[index].upvalues : 0;
+					for (int j = 0; j < upvalues && pc + 1 < code.length; j++) data[++pc] = true;
+				}
+			}
+		}
+		return data;
+	}
+
+	private static boolean threadJumps(int[] code, boolean[] data) {
+		boolean changed = false;
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			if (data[pc] || GET_OPCODE(i) != OP_JMP) continue;
+
+			int target = pc + 1 + GETARG_sBx(i);
+			// Follow the chain of jumps, bailing out after enough steps to visit every instruction (i.e. an infinite
+			// loop of jumps).
+			for (int steps = 0; steps < code.length && isJump(code, data, target); steps++) {
+				target = target + 1 + GETARG_sBx(code[target]);
+			}
+
+			int offset = target - (pc + 1);
+			if (offset != GETARG_sBx(i) && offset >= -MAXARG_sBx && offset <= MAXARG_sBx) {
+				code[pc] = SETARG_sBx(i, offset);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean isJump(int[] code, boolean[] data, int pc) {
+		return pc >= 0 && pc < code.length && !data[pc] && GET_OPCODE(code[pc]) == OP_JMP;
+	}
+
+	/**
+	 * Find all instructions which can be reached from somewhere other than the previous instruction, and all
+	 * instructions which must not be removed as they are skipped over by the previous one.
+	 */
+	private static void findTargets(int[] code, boolean[] data, boolean[] targets, boolean[] pinned) {
+		for (int pc = 0; pc < code.length; pc++) {
+			if (data[pc]) continue;
+
+			int i = code[pc], op = GET_OPCODE(i);
+			switch (op) {
+				case OP_JMP, OP_FORPREP, OP_FORLOOP -> {
+					int target = pc + 1 + GETARG_sBx(i);
+					if (target >= 0 && target <= code.length) targets[target] = true;
+				}
+				case OP_LOADBOOL -> {
+					if (GETARG_C(i) != 0) skips(pc, targets, pinned);
+				}
+				default -> {
+					if (testTMode(op)) skips(pc, targets, pinned);
+				}
+			}
+		}
+	}
+
+	private static void skips(int pc, boolean[] targets, boolean[] pinned) {
+		if (pc + 1 < pinned.length) pinned[pc + 1] = true;
+		if (pc + 2 < targets.length) targets[pc + 2] = true;
+	}
+
+	private static boolean peephole(Prototype prototype, int[] code, boolean[] data, boolean[] targets, boolean[] pinned, boolean[] remove) {
+		boolean changed = false;
+
+		// The last instruction we kept. If the current instruction is not a jump target, this is always executed
+		// directly before it.
+		int last = -1;
+		for (int pc = 0; pc < code.length; pc++) {
+			if (data[pc]) {
+				last = -1;
+				continue;
+			}
+
+			int i = code[pc], op = GET_OPCODE(i), a = GETARG_A(i);
+			int previous = last >= 0 ? code[last] : 0;
+			int previousOp = last >= 0 && !targets[pc] ? GET_OPCODE(previous) : -1;
+
+			switch (op) {
+				case OP_MOVE -> {
+					int b = GETARG_B(i);
+					if (!pinned[pc] && (a == b || (previousOp == OP_MOVE && GETARG_A(previous) == b && GETARG_B(previous) == a))) {
+						remove[pc] = changed = true;
+						if (targets[pc]) last = -1;
+						continue;
+					}
+				}
+				case OP_LOADNIL -> {
+					int b = GETARG_B(i);
+					if (!pinned[pc] && previousOp == OP_LOADNIL) {
+						int previousA = GETARG_A(previous), previousB = GETARG_B(previous);
+						if (a <= previousB + 1 && previousA <= b + 1) {
+							code[last] = SETARG_B(SETARG_A(previous, Math.min(a, previousA)), Math.max(b, previousB));
+							remove[pc] = changed = true;
+							continue;
+						}
+					}
+				}
+				case OP_GETTABLE, OP_ADD, OP_SUB, OP_MUL, OP_DIV, OP_MOD, OP_POW -> {
+					if (previousOp == OP_LOADK && !pinned[last] && GETARG_A(previous) == a && GETARG_Bx(previous) <= MAXINDEXRK
+						&& !isLocal(prototype, a, pc)) {
+						int folded = foldConstant(i, op, a, RKASK(GETARG_Bx(previous)));
+						if (folded != i) {
+							code[pc] = folded;
+							remove[last] = changed = true;
+						}
+					}
+				}
+			}
+
+			last = pc;
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Replace uses of register {@code register} in an instruction's RK operands with a constant.
+	 *
+	 * @return The rewritten instruction, or the original one if the register is not used as an RK operand, or is also
+	 * used in a way which cannot be replaced.
+	 */
+	private static int foldConstant(int i, int op, int register, int constant) {
+		int b = GETARG_B(i), c = GETARG_C(i);
+		if (op == OP_GETTABLE) return b != register && c == register ? SETARG_C(i, constant) : i;
+
+		if (b == register) i = SETARG_B(i, constant);
+		if (c == register) i = SETARG_C(i, constant);
+		return i;
+	}
+
+	/**
+	 * Determine if a register holds an active local variable. Local variables may be observed by the debug library, so
+	 * should be left alone.
+	 */
+	private static boolean isLocal(Prototype prototype, int register, int pc) {
+		int active = 0;
+		for (LocalVariable local : prototype.locals) {
+			if (local.startpc > pc) break;
+			if (pc < local.endpc) active++;
+		}
+		return register < active;
+	}
+
+	private static boolean removeUnreachable(int[] code, Prototype[] children, boolean[] pinned, boolean[] remove) {
+		int length = code.length;
+		boolean[] reachable = new boolean[length];
+		int[] queue = new int[length * 2 + 1];
+		int queued = 0;
+		queue[queued++] = 0;
+
+		while (queued > 0) {
+			int pc = queue[--queued];
+			if (pc < 0 || pc >= length || reachable[pc]) continue;
+			reachable[pc] = true;
+
+			int i = code[pc], op = GET_OPCODE(i);
+			switch (op) {
+				case OP_JMP, OP_FORPREP -> queue[queued++] = pc + 1 + GETARG_sBx(i);
+				case OP_FORLOOP -> {
+					queue[queued++] = pc + 1;
+					queue[queued++] = pc + 1 + GETARG_sBx(i);
+				}
+				case OP_RETURN -> {
+				}
+				case OP_LOADBOOL -> queue[queued++] = GETARG_C(i) != 0 ? pc + 2 : pc + 1;
+				case OP_SETLIST -> {
+					if (GETARG_C(i) == 0 && pc + 1 < length) reachable[++pc] = true;
+					queue[queued++] = pc + 1;
+				}
+				case OP_CLOSURE -> {
+					int index = GETARG_Bx(i);
+					int upvalues = index < children.length ? children[index].upvalues : 0;
+					for (int j = 0; j < upvalues && pc + 1 < length; j++) reachable[++pc] = true;
+					queue[queued++] = pc + 1;
+				}
+				default -> {
+					queue[queued++] = pc + 1;
+					if (testTMode(op)) queue[queued++] = pc + 2;
+				}
+			}
+		}
+
+		boolean changed = false;
+		for (int pc = 0; pc < length; pc++) {
+			if (!reachable[pc] && !pinned[pc] && !remove[pc]) remove[pc] = changed = true;
+		}
+		return changed;
+	}
+
+	private static Prototype rebuild(Prototype prototype, Prototype[] children, int[] code, boolean[] data, boolean[] remove) {
+		int length = code.length;
+
+		// Map each instruction to its new position. Removed instructions map to the next instruction which is kept.
+		int[] positions = new int[length + 1];
+		int kept = 0;
+		for (int pc = 0; pc < length; pc++) {
+			positions[pc] = kept;
+			if (!remove[pc]) kept++;
+		}
+		positions[length] = kept;
+
+		int[] newCode = new int[kept];
+		for (int pc = 0; pc < length; pc++) {
+			if (remove[pc]) continue;
+
+			int i = code[pc];
+			switch (data[pc] ? -1 : GET_OPCODE(i)) {
+				case OP_JMP, OP_FORPREP, OP_FORLOOP -> {
+					int target = Math.max(0, Math.min(length, pc + 1 + GETARG_sBx(i)));
+					i = SETARG_sBx(i, positions[target] - positions[pc] - 1);
+				}
+			}
+			newCode[positions[pc]] = i;
+		}
+
+		LocalVariable[] locals = new LocalVariable[prototype.locals.length];
+		for (int j = 0; j < locals.length; j++) {
+			LocalVariable local = prototype.locals[j];
+			locals[j] = new LocalVariable(local.name, remap(positions, local.startpc), remap(positions, local.endpc));
+		}
+
+		return new Prototype(
+			prototype.source, prototype.constants, newCode, children,
+			prototype.parameters, prototype.isVarArg, prototype.maxStackSize, prototype.upvalues,
+			prototype.lineDefined, prototype.lastLineDefined,
+			filter(prototype.lineInfo, remove, kept), filter(prototype.columnInfo, remove, kept),
+			locals, prototype.upvalueNames
+		);
+	}
+
+	private static int remap(int[] positions, int pc) {
+		return positions[Math.max(0, Math.min(positions.length - 1, pc))];
+	}
+
+	/**
+	 * Remove the entries of an array of per-instruction debug information which correspond to removed instructions.
+	 */
+	private static int[] filter(int[] info, boolean[] remove, int kept) {
+		// Debug information may have been stripped, in which case there is nothing to update.
+		if (info == null || info.length != remove.length) return info;
+
+		int[] result = new int[kept];
+		int index = 0;
+		for (int pc = 0; pc < info.length; pc++) {
+			if (!remove[pc]) result[index++] = info[pc];
+		}
+		return index == kept ? result : Arrays.copyOf(result, index);
+	}
+}
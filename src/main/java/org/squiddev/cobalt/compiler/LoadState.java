@@ -120,7 +120,20 @@ public final class LoadState {
 	}
 
 	public static LuaClosure load(LuaState state, InputStream stream, LuaString name, LuaString mode, LuaTable env) throws CompileException {
-		return state.compiler.load(LuaC.compile(stream, name, mode), env);
+		return load(state, LuaC.compile(stream, name, mode), env);
+	}
+
+	/**
+	 * Load a compiled {@link Prototype}, optimising it first if {@linkplain LuaState#optimizeBytecode enabled}.
+	 *
+	 * @param state     The current lua state
+	 * @param prototype The prototype to load
+	 * @param env       Environment to load into
+	 * @return The loaded function.
+	 */
+	public static LuaClosure load(LuaState state, Prototype prototype, LuaTable env) {
+		if (state.optimizeBytecode) prototype = BytecodeOptimizer.optimize(prototype);
+		return state.compiler.load(prototype, env);
 	}
 
 	/**
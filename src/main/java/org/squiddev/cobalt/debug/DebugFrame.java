@@ -31,6 +31,8 @@ import org.squiddev.cobalt.function.LuaFunction;
 import org.squiddev.cobalt.function.LuaInterpretedFunction;
 import org.squiddev.cobalt.function.LuaInterpreter;
 
+import java.util.Arrays;
+
 /**
  * Each thread will get a DebugState attached to it by the debug library
  * which will track function calls, hook functions, etc.
@@ -151,6 +153,13 @@ public final class DebugFrame {
 	 */
 	public Upvalue lastUpvalue;
 
+	/**
+	 * A register array from a previous call using this frame, cleared to {@link Constants#NIL}. This is reused by
+	 * {@link #setFunction(LuaClosure, int)} to avoid allocating a new array on every call.
+	 */
+	private LuaValue @Nullable [] spareStack;
+	private int stackSize;
+
 	public Object state;
 
 	public final DebugFrame previous;
@@ -158,6 +167,13 @@ public final class DebugFrame {
 	private static final LuaString TEMPORARY = ValueFactory.valueOf("(*temporary)");
 
 	public Varargs varargs, extras;
+
+	/**
+	 * If {@link #varargs} is {@code null}, the number of variable arguments passed to this function. These are stored
+	 * in the {@link #stack}, after the function's registers and space for the same number of temporary values.
+	 */
+	public int varargCount;
+
 	public int pc = -1, oldPc = -1, top = -1;
 	public int flags;
 
@@ -184,6 +200,31 @@ public final class DebugFrame {
 		this.closure = closure;
 		this.varargs = varargs;
 		this.stack = stack;
+		this.stackSize = stack.length;
+	}
+
+	/**
+	 * Set this debug frame to hold some Lua closure, providing it with a fresh set of registers. The register array is
+	 * reused from the previous call in this frame where possible.
+	 *
+	 * @param closure   the function called
+	 * @param stackSize The number of registers the function requires. These are all set to {@link Constants#NIL}.
+	 * @return The frame's new stack.
+	 */
+	public LuaValue[] setFunction(LuaClosure closure, int stackSize) {
+		this.func = closure;
+		this.closure = closure;
+
+		LuaValue[] stack = spareStack;
+		if (stack != null && stack.length >= stackSize) {
+			spareStack = null;
+		} else {
+			stack = new LuaValue[stackSize];
+			Arrays.fill(stack, Constants.NIL);
+		}
+
+		this.stackSize = stackSize;
+		return this.stack = stack;
 	}
 
 	/**
@@ -203,15 +244,25 @@ public final class DebugFrame {
 	public void cleanup() {
 		Upvalue upvalue = lastUpvalue;
 		while (upvalue != null) upvalue = upvalue.close();
+		lastUpvalue = null;
 	}
 
 	void clear() {
+		// If no upvalues point into our registers, then we can safely reuse them for the next call. We clear them now
+		// rather than on reuse, so they don't keep any values alive.
+		LuaValue[] stack = this.stack;
+		if (stack != null && lastUpvalue == null) {
+			Arrays.fill(stack, 0, stackSize, Constants.NIL);
+			spareStack = stack;
+		}
+
 		func = null;
 		closure = null;
 		stack = null;
 		lastUpvalue = null;
 		state = null;
 		varargs = extras = null;
+		varargCount = 0;
 		flags = 0;
 		oldPc = pc = top = -1;
 	}
@@ -222,6 +273,18 @@ public final class DebugFrame {
 		lastUpvalue = upvalue;
 	}
 
+	/**
+	 * Find the open upvalue for a slot, without creating one if it does not exist.
+	 *
+	 * @param slot The slot to find the upvalue for.
+	 * @return The open upvalue, or {@code null} if none exists.
+	 */
+	public @Nullable Upvalue findUpvalue(int slot) {
+		Upvalue upvalue = lastUpvalue;
+		while (upvalue != null && upvalue.getIndex() > slot) upvalue = upvalue.previous;
+		return upvalue != null && upvalue.getIndex() == slot ? upvalue : null;
+	}
+
 	public Upvalue getUpvalue(int slot) {
 		Upvalue upvalue = lastUpvalue, next = null;
 		// We've got a linked list of the form U(1) <- ... <- U(slot) <- ... <- U(top). Keep
@@ -292,7 +292,17 @@ public final class DebugState {
 	 */
 	public void onInstruction(DebugFrame frame, int pc) throws LuaError, UnwindThrowable {
 		frame.pc = pc;
-		if (inhook || (hookMask & (HOOK_LINE | HOOK_COUNT)) != 0) onInstructionWorker(frame, pc);
+		if (hasInstructionHook()) onInstructionWorker(frame, pc);
+	}
+
+	/**
+	 * Determine whether {@link #onInstruction(DebugFrame, int)} needs to do anything other than update the program
+	 * counter, such as running line or count hooks.
+	 *
+	 * @return Whether instructions are observed by a hook.
+	 */
+	public boolean hasInstructionHook() {
+		return inhook || (hookMask & (HOOK_LINE | HOOK_COUNT)) != 0;
 	}
 
 	private void onInstructionWorker(DebugFrame frame, int pc) throws LuaError, UnwindThrowable {
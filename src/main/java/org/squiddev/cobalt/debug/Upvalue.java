@@ -24,19 +24,31 @@
  */
 package org.squiddev.cobalt.debug;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.squiddev.cobalt.LuaValue;
 import org.squiddev.cobalt.Prototype;
 import org.squiddev.cobalt.function.LuaClosure;
 
 /**
  * Upvalue used with Closure formulation
+ * <p>
+ * An upvalue is initially "open", and refers to a register in a function's stack. Once that function returns (or the
+ * variable goes out of scope) the upvalue is "closed", and the value is copied into this object.
  *
  * @see LuaClosure
  * @see Prototype
  */
 public final class Upvalue {
-	private LuaValue[] array; // initially the stack, becomes a holder
-	private int index;
+	/**
+	 * The stack this upvalue points to, or {@code null} if this upvalue is closed.
+	 */
+	private LuaValue @Nullable [] stack;
+	private final int index;
+
+	/**
+	 * The value of this upvalue, if closed.
+	 */
+	private LuaValue value;
 
 	Upvalue previous;
 
@@ -47,13 +59,19 @@ public final class Upvalue {
 	 * @param index the index on the stack for the upvalue
 	 */
 	Upvalue(LuaValue[] stack, int index, Upvalue previous) {
-		this.array = stack;
+		this.stack = stack;
 		this.index = index;
 		this.previous = previous;
 	}
 
+	/**
+	 * Create a closed upvalue.
+	 *
+	 * @param value The upvalue's value.
+	 */
 	public Upvalue(LuaValue value) {
-		this(new LuaValue[]{value}, 0, null);
+		this.index = -1;
+		this.value = value;
 	}
 
 	/**
@@ -64,7 +82,7 @@ public final class Upvalue {
 	 */
 	@Override
 	public String toString() {
-		return array[index].toString();
+		return getValue().toString();
 	}
 
 	/**
@@ -73,7 +91,8 @@ public final class Upvalue {
 	 * @return the {@link LuaValue} for this upvalue
 	 */
 	public LuaValue getValue() {
-		return array[index];
+		LuaValue[] stack = this.stack;
+		return stack == null ? value : stack[index];
 	}
 
 	/**
@@ -82,7 +101,12 @@ public final class Upvalue {
 	 * @param value {@link LuaValue} to set it to
 	 */
 	public void setValue(LuaValue value) {
-		array[index] = value;
+		LuaValue[] stack = this.stack;
+		if (stack == null) {
+			this.value = value;
+		} else {
+			stack[index] = value;
+		}
 	}
 
 	int getIndex() {
@@ -94,8 +118,8 @@ public final class Upvalue {
 	 */
 	Upvalue close() {
 		Upvalue previous = this.previous;
-		array = new LuaValue[]{array[index]};
-		index = 0;
+		value = stack[index];
+		stack = null;
 		this.previous = null;
 		return previous;
 	}
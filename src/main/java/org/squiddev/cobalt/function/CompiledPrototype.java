@@ -0,0 +1,37 @@
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.LuaError;
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.UnwindThrowable;
+import org.squiddev.cobalt.Varargs;
+import org.squiddev.cobalt.debug.DebugFrame;
+import org.squiddev.cobalt.debug.DebugState;
+
+/**
+ * A {@link Prototype} which has been compiled to JVM bytecode by the {@link JvmCompiler}.
+ * <p>
+ * Compiled code executes one frame at a time, in the same way as {@link LuaInterpreter}: registers live in
+ * {@link DebugFrame#stack} and the current instruction is tracked in {@link DebugFrame#pc}. This means compiled frames
+ * can be suspended, resumed and inspected by the debug library exactly like interpreted ones.
+ *
+ * @see Prototype#compiled
+ */
+public abstract class CompiledPrototype {
+	protected CompiledPrototype() {
+	}
+
+	/**
+	 * Execute a frame of this function, starting at {@link DebugFrame#pc}.
+	 *
+	 * @param state    The current Lua state.
+	 * @param ds       The current debug state.
+	 * @param di       The frame to execute.
+	 * @param function The function being executed.
+	 * @return The function's return values if the frame was a {@linkplain DebugFrame#FLAG_FRESH fresh} invocation,
+	 * or {@code null} if execution should continue in whichever frame is now at the top of the stack.
+	 * @throws LuaError        If the function errored.
+	 * @throws UnwindThrowable If the function yielded.
+	 */
+	abstract Varargs execute(LuaState state, DebugState ds, DebugFrame di, LuaInterpretedFunction function) throws LuaError, UnwindThrowable;
+}
@@ -0,0 +1,115 @@
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.Print;
+import org.squiddev.cobalt.Prototype;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.squiddev.cobalt.Lua.GET_OPCODE;
+import static org.squiddev.cobalt.Lua.NUM_OPCODES;
+
+/**
+ * Counts how many times each instruction is executed by the {@link LuaInterpreter}.
+ * <p>
+ * While a profiler is {@linkplain LuaState#setProfiler(InstructionProfiler) installed}, the interpreter executes every
+ * function instruction-by-instruction (as it does when a line or count hook is set), incrementing a counter for each
+ * instruction. Functions compiled with the {@link JvmCompiler} are interpreted while profiling, so their instructions
+ * are also counted. When no profiler is installed, this has no cost.
+ * <p>
+ * Counts are not synchronised, so a profiler should only be installed on one {@link LuaState} at a time.
+ */
+public final class InstructionProfiler {
+	private final Map<Prototype, long[]> counts = new IdentityHashMap<>();
+
+	long[] counts(Prototype prototype) {
+		return counts.computeIfAbsent(prototype, p -> new long[p.code.length]);
+	}
+
+	/**
+	 * Get the number of times each instruction in a function has been executed.
+	 *
+	 * @param prototype The function to get the counts for.
+	 * @return The number of times each instruction was executed, indexed by program counter. This array should not
+	 * be modified.
+	 */
+	public long[] getCounts(Prototype prototype) {
+		long[] result = counts.get(prototype);
+		return result == null ? new long[prototype.code.length] : result;
+	}
+
+	/**
+	 * Get the number of times each opcode has been executed, across all functions.
+	 *
+	 * @return The number of times each opcode was executed, indexed by opcode.
+	 * @see Print#OPNAMES
+	 */
+	public long[] getOpcodeCounts() {
+		long[] opcodes = new long[NUM_OPCODES];
+		for (Map.Entry<Prototype, long[]> entry : counts.entrySet()) {
+			int[] code = entry.getKey().code;
+			long[] count = entry.getValue();
+			for (int pc = 0; pc < code.length; pc++) opcodes[GET_OPCODE(code[pc])] += count[pc];
+		}
+		return opcodes;
+	}
+
+	/**
+	 * Clear all counts.
+	 */
+	public void reset() {
+		counts.clear();
+	}
+
+	/**
+	 * Print a report of the most frequently executed opcodes and instructions.
+	 *
+	 * @param out   The writer to print the report to.
+	 * @param limit The maximum number of instructions to include.
+	 */
+	public void report(PrintWriter out, int limit) {
+		long[] opcodes = getOpcodeCounts();
+		long total = 0;
+		for (long count : opcodes) total += count;
+
+		out.println("Opcodes:");
+		Integer[] order = new Integer[NUM_OPCODES];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		Arrays.sort(order, Comparator.comparingLong((Integer op) -> opcodes[op]).reversed());
+		for (int op : order) {
+			if (opcodes[op] == 0) break;
+			out.printf("  %-10s %12d  %5.1f%%%n", Print.OPNAMES[op], opcodes[op], opcodes[op] * 100.0 / total);
+		}
+
+		List<Instruction> instructions = new ArrayList<>();
+		for (Map.Entry<Prototype, long[]> entry : counts.entrySet()) {
+			long[] count = entry.getValue();
+			for (int pc = 0; pc < count.length; pc++) {
+				if (count[pc] > 0) instructions.add(new Instruction(entry.getKey(), pc, count[pc]));
+			}
+		}
+		instructions.sort(Comparator.comparingLong(Instruction::count).reversed());
+
+		out.println("Instructions:");
+		for (int i = 0; i < instructions.size() && i < limit; i++) {
+			Instruction instruction = instructions.get(i);
+			Prototype p = instruction.prototype();
+			int pc = instruction.pc();
+			out.printf(
+				"  %12d  %s:%d  %s (function <%s:%d>, pc %d)%n",
+				instruction.count(), p.sourceShort(), p.getLine(pc), Print.OPNAMES[GET_OPCODE(p.code[pc])],
+				p.sourceShort(), p.lineDefined, pc + 1
+			);
+		}
+		out.flush();
+	}
+
+	private record Instruction(Prototype prototype, int pc, long count) {
+	}
+}
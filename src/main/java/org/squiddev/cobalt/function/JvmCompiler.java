@@ -0,0 +1,966 @@
+package org.squiddev.cobalt.function;
+
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.debug.DebugFrame;
+import org.squiddev.cobalt.debug.DebugState;
+import org.squiddev.cobalt.debug.Upvalue;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.*;
+import static org.squiddev.cobalt.Lua.*;
+
+/**
+ * Compiles Lua {@link Prototype}s to JVM bytecode.
+ * <p>
+ * This is a template compiler: each Lua instruction is translated to the same sequence of operations that
+ * {@link LuaInterpreter} would perform, removing the cost of decoding and dispatching instructions. Registers still
+ * live on the {@link DebugFrame}, and {@link DebugFrame#pc} is updated before every instruction, meaning debug hooks,
+ * error positions and coroutine suspension behave exactly as they would with the interpreter.
+ * <p>
+ * The one exception to this is sequences of arithmetic instructions: when no line or count hooks are active, these keep
+ * their operands and results unboxed in {@code double} locals, only writing them back to the stack at the end of the
+ * sequence.
+ * <p>
+ * Functions which cannot be compiled (for instance, because the generated method would be too large) are left to the
+ * interpreter.
+ *
+ * @see LuaState.Builder#compiler(LoadState.FunctionFactory)
+ * @see CompiledPrototype
+ */
+public final class JvmCompiler {
+	/**
+	 * HotSpot will not JIT methods larger than this, so there is no benefit in keeping them.
+	 */
+	private static final int HUGE_METHOD_LIMIT = 8000;
+
+	private static final String CLASS_NAME = Type.getInternalName(CompiledPrototype.class) + "$Lua";
+
+	private static final String LUA_STATE = Type.getInternalName(LuaState.class);
+	private static final String DEBUG_STATE = Type.getInternalName(DebugState.class);
+	private static final String DEBUG_FRAME = Type.getInternalName(DebugFrame.class);
+	private static final String FUNCTION = Type.getInternalName(LuaInterpretedFunction.class);
+	private static final String PROTOTYPE = Type.getInternalName(Prototype.class);
+	private static final String INTERPRETER = Type.getInternalName(LuaInterpreter.class);
+	private static final String OPERATION_HELPER = Type.getInternalName(OperationHelper.class);
+	private static final String LUA_VALUE = Type.getInternalName(LuaValue.class);
+	private static final String LUA_TABLE = Type.getInternalName(LuaTable.class);
+	private static final String VARARGS = Type.getInternalName(Varargs.class);
+	private static final String UPVALUE = Type.getInternalName(Upvalue.class);
+	private static final String CONSTANTS = Type.getInternalName(Constants.class);
+	private static final String LUA_STRING = Type.getInternalName(LuaString.class);
+	private static final String LUA_NUMBER = Type.getInternalName(LuaNumber.class);
+	private static final String LUA_DOUBLE = Type.getInternalName(LuaDouble.class);
+
+	private static final String D_LUA_STATE = "L" + LUA_STATE + ";";
+	private static final String D_DEBUG_STATE = "L" + DEBUG_STATE + ";";
+	private static final String D_DEBUG_FRAME = "L" + DEBUG_FRAME + ";";
+	private static final String D_FUNCTION = "L" + FUNCTION + ";";
+	private static final String D_LUA_VALUE = "L" + LUA_VALUE + ";";
+	private static final String D_VARARGS = "L" + VARARGS + ";";
+	private static final String D_STACK = "[" + D_LUA_VALUE;
+
+	private static final String EXECUTE_DESC = "(" + D_LUA_STATE + D_DEBUG_STATE + D_DEBUG_FRAME + D_FUNCTION + ")" + D_VARARGS;
+	private static final String BINARY_DESC = "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + "II)" + D_LUA_VALUE;
+	private static final String CACHED_GET_DESC = "(" + D_LUA_STATE + D_LUA_VALUE + "L" + LUA_STRING + ";[III)" + D_LUA_VALUE;
+	private static final String CACHED_SET_DESC = "(" + D_LUA_STATE + D_LUA_VALUE + "L" + LUA_STRING + ";" + D_LUA_VALUE + "[III)V";
+	private static final String GET_GLOBAL_DESC = "(" + D_LUA_STATE + "L" + LUA_TABLE + ";L" + LUA_STRING + ";[Ljava/lang/Object;I)" + D_LUA_VALUE;
+	private static final String SET_GLOBAL_DESC = "(" + D_LUA_STATE + "L" + LUA_TABLE + ";L" + LUA_STRING + ";" + D_LUA_VALUE + "[Ljava/lang/Object;I)V";
+	private static final String COMPARE_DESC = "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + ")Z";
+
+	// Local variable slots in the generated method
+	private static final int SLOT_STATE = 1;
+	private static final int SLOT_DS = 2;
+	private static final int SLOT_DI = 3;
+	private static final int SLOT_FUNCTION = 4;
+	private static final int SLOT_STACK = 5;
+	private static final int SLOT_K = 6;
+	private static final int SLOT_UPVALUES = 7;
+	private static final int SLOT_VARARGS = 8;
+	private static final int SLOT_TEMP = 9;
+	private static final int SLOT_CACHE = 10;
+	private static final int SLOT_GLOBAL_CACHE = 11;
+	/**
+	 * The first of the {@code double} locals used to hold unboxed registers. Register {@code r} is stored at
+	 * {@code SLOT_NUMBERS + r * 2}.
+	 */
+	private static final int SLOT_NUMBERS = 12;
+
+	// The state of a register within a sequence of arithmetic instructions.
+	private static final byte BOXED = 0; // Only available on the stack.
+	private static final byte UNBOXED = 1; // Available both on the stack and as a double.
+	private static final byte PENDING = 2; // Only available as a double, and must be written back to the stack.
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private JvmCompiler() {
+	}
+
+	/**
+	 * A {@link LoadState.FunctionFactory} which compiles the prototype (and all its children) to JVM bytecode.
+	 *
+	 * @param prototype The function prototype.
+	 * @param env       The function's environment.
+	 * @return The loaded function.
+	 */
+	public static LuaClosure load(Prototype prototype, LuaTable env) {
+		compileAll(prototype);
+		return LoadState.interpretedFunction(prototype, env);
+	}
+
+	private static void compileAll(Prototype prototype) {
+		compile(prototype);
+		for (Prototype child : prototype.children) compileAll(child);
+	}
+
+	/**
+	 * Compile a single prototype, setting {@link Prototype#compiled}.
+	 *
+	 * @param prototype The prototype to compile.
+	 * @return Whether the prototype was compiled. If not, it will continue to be interpreted.
+	 */
+	public static boolean compile(Prototype prototype) {
+		if (prototype.compiled != null) return true;
+
+		byte[] bytes = generate(prototype);
+		if (bytes == null) return false;
+
+		try {
+			Class<?> klass = LOOKUP.defineHiddenClass(bytes, true).lookupClass();
+			prototype.compiled = (CompiledPrototype) klass.getConstructor().newInstance();
+			return true;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return false;
+		}
+	}
+
+	private static byte[] generate(Prototype p) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+			@Override
+			protected ClassLoader getClassLoader() {
+				return JvmCompiler.class.getClassLoader();
+			}
+		};
+		cw.visit(V17, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, CLASS_NAME, null, Type.getInternalName(CompiledPrototype.class), null);
+		cw.visitSource(p.sourceShort().toString(), null);
+
+		MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(CompiledPrototype.class), "<init>", "()V", false);
+		init.visitInsn(RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+
+		MethodVisitor mw = cw.visitMethod(0, "execute", EXECUTE_DESC, null, new String[]{
+			Type.getInternalName(LuaError.class), Type.getInternalName(UnwindThrowable.class),
+		});
+		mw.visitCode();
+		Label end = new Label();
+		new FunctionBuilder(p, mw).build();
+		mw.visitLabel(end);
+		mw.visitMaxs(0, 0);
+		mw.visitEnd();
+		cw.visitEnd();
+
+		try {
+			byte[] bytes = cw.toByteArray();
+			return end.getOffset() > HUGE_METHOD_LIMIT ? null : bytes;
+		} catch (MethodTooLargeException | ClassTooLargeException e) {
+			return null;
+		}
+	}
+
+	private static final class FunctionBuilder {
+		private final Prototype p;
+		private final int[] code;
+		private final MethodVisitor mw;
+		private final Label[] labels;
+
+		FunctionBuilder(Prototype p, MethodVisitor mw) {
+			this.p = p;
+			this.code = p.code;
+			this.mw = mw;
+
+			// Create a label for each instruction, skipping over any extra data words.
+			labels = new Label[code.length];
+			for (int pc = 0; pc < code.length; pc++) {
+				labels[pc] = new Label();
+
+				int i = code[pc];
+				switch (GET_OPCODE(i)) {
+					case OP_SETLIST -> {
+						if (GETARG_C(i) == 0) pc++;
+					}
+					case OP_CLOSURE -> pc += p.children[GETARG_Bx(i)].upvalues;
+				}
+			}
+		}
+
+		void build() {
+			Label invalid = new Label();
+
+			mw.visitVarInsn(ALOAD, SLOT_DI);
+			mw.visitFieldInsn(GETFIELD, DEBUG_FRAME, "stack", D_STACK);
+			mw.visitVarInsn(ASTORE, SLOT_STACK);
+
+			mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+			mw.visitFieldInsn(GETFIELD, FUNCTION, "p", "L" + PROTOTYPE + ";");
+			mw.visitFieldInsn(GETFIELD, PROTOTYPE, "constants", D_STACK);
+			mw.visitVarInsn(ASTORE, SLOT_K);
+
+			mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+			mw.visitFieldInsn(GETFIELD, FUNCTION, "p", "L" + PROTOTYPE + ";");
+			mw.visitFieldInsn(GETFIELD, PROTOTYPE, "inlineCache", "[I");
+			mw.visitVarInsn(ASTORE, SLOT_CACHE);
+
+			mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+			mw.visitFieldInsn(GETFIELD, FUNCTION, "p", "L" + PROTOTYPE + ";");
+			mw.visitFieldInsn(GETFIELD, PROTOTYPE, "globalCache", "[Ljava/lang/Object;");
+			mw.visitVarInsn(ASTORE, SLOT_GLOBAL_CACHE);
+
+			mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+			mw.visitFieldInsn(GETFIELD, FUNCTION, "upvalues", "[L" + UPVALUE + ";");
+			mw.visitVarInsn(ASTORE, SLOT_UPVALUES);
+
+			mw.visitVarInsn(ALOAD, SLOT_DI);
+			mw.visitFieldInsn(GETFIELD, DEBUG_FRAME, "varargs", D_VARARGS);
+			mw.visitVarInsn(ASTORE, SLOT_VARARGS);
+
+			// Jump to the current instruction. This is 0 for new frames, but may be elsewhere when resuming.
+			Label[] targets = new Label[code.length];
+			for (int pc = 0; pc < code.length; pc++) targets[pc] = labels[pc] == null ? invalid : labels[pc];
+			mw.visitVarInsn(ALOAD, SLOT_DI);
+			mw.visitFieldInsn(GETFIELD, DEBUG_FRAME, "pc", "I");
+			mw.visitTableSwitchInsn(0, code.length - 1, invalid, targets);
+
+			for (int pc = 0; pc < code.length; pc++) {
+				if (labels[pc] == null) continue;
+
+				int end = pc;
+				while (end < code.length && labels[end] != null && isArithmetic(code[end])) end++;
+				if (end - pc >= 2) {
+					arithmetic(pc, end);
+					pc = end - 1;
+				} else {
+					instruction(pc);
+				}
+			}
+
+			mw.visitLabel(invalid);
+			mw.visitTypeInsn(NEW, "java/lang/IllegalStateException");
+			mw.visitInsn(DUP);
+			mw.visitLdcInsn("Invalid program counter");
+			mw.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V", false);
+			mw.visitInsn(ATHROW);
+		}
+
+		private void instruction(int pc) {
+			instructionHeader(pc);
+			instructionBody(pc);
+		}
+
+		private void instructionHeader(int pc) {
+			mw.visitLabel(labels[pc]);
+			if (p.lineInfo != null && pc < p.lineInfo.length) mw.visitLineNumber(p.lineInfo[pc], labels[pc]);
+
+			mw.visitVarInsn(ALOAD, SLOT_DS);
+			mw.visitVarInsn(ALOAD, SLOT_DI);
+			constant(pc);
+			mw.visitMethodInsn(INVOKEVIRTUAL, DEBUG_STATE, "onInstruction", "(" + D_DEBUG_FRAME + "I)V", false);
+		}
+
+		private void instructionBody(int pc) {
+			int i = code[pc];
+			int a = GETARG_A(i);
+
+			switch (GET_OPCODE(i)) {
+				case OP_MOVE -> { // A B: R(A):= R(B)
+					beginStore(a);
+					loadRegister(GETARG_B(i));
+					endStore();
+				}
+
+				case OP_LOADK -> { // A Bx: R(A):= Kst(Bx)
+					beginStore(a);
+					loadConstant(GETARG_Bx(i));
+					endStore();
+				}
+
+				case OP_LOADBOOL -> { // A B C: R(A):= (Bool)B: if (C) pc++
+					beginStore(a);
+					mw.visitFieldInsn(GETSTATIC, CONSTANTS, GETARG_B(i) != 0 ? "TRUE" : "FALSE", "L" + Type.getInternalName(LuaBoolean.class) + ";");
+					endStore();
+					if (GETARG_C(i) != 0) jump(pc + 2);
+				}
+
+				case OP_LOADNIL -> { // A B: R(A):= ...:= R(B):= nil
+					for (int b = GETARG_B(i); b >= a; b--) {
+						beginStore(b);
+						mw.visitFieldInsn(GETSTATIC, CONSTANTS, "NIL", D_LUA_VALUE);
+						endStore();
+					}
+				}
+
+				case OP_GETUPVAL -> { // A B: R(A):= UpValue[B]
+					beginStore(a);
+					mw.visitVarInsn(ALOAD, SLOT_UPVALUES);
+					constant(GETARG_B(i));
+					mw.visitInsn(AALOAD);
+					mw.visitMethodInsn(INVOKEVIRTUAL, UPVALUE, "getValue", "()" + D_LUA_VALUE, false);
+					endStore();
+				}
+
+				case OP_GETGLOBAL -> { // A Bx	R(A):= Gbl[Kst(Bx)]
+					int bx = GETARG_Bx(i);
+					beginStore(a);
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					loadEnv();
+					if (p.constants[bx] instanceof LuaString) {
+						loadStringConstant(bx);
+						mw.visitVarInsn(ALOAD, SLOT_GLOBAL_CACHE);
+						constant(bx);
+						mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "getGlobal", GET_GLOBAL_DESC, false);
+					} else {
+						loadConstant(bx);
+						mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "getTable", "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + ")" + D_LUA_VALUE, false);
+					}
+					endStore();
+				}
+
+				case OP_GETTABLE -> { // A B C: R(A):= R(B)[RK(C)]
+					int b = GETARG_B(i);
+					beginStore(a);
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					loadRegister(b);
+					getTable(pc, GETARG_C(i), b);
+					endStore();
+				}
+
+				case OP_SETGLOBAL -> { // A Bx: Gbl[Kst(Bx)]:= R(A)
+					int bx = GETARG_Bx(i);
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					loadEnv();
+					if (p.constants[bx] instanceof LuaString) {
+						loadStringConstant(bx);
+						loadRegister(a);
+						mw.visitVarInsn(ALOAD, SLOT_GLOBAL_CACHE);
+						constant(bx);
+						mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "setGlobal", SET_GLOBAL_DESC, false);
+					} else {
+						loadConstant(bx);
+						loadRegister(a);
+						mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "setTable", "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + D_LUA_VALUE + ")V", false);
+					}
+				}
+
+				case OP_SETUPVAL -> { // A B: UpValue[B]:= R(A)
+					mw.visitVarInsn(ALOAD, SLOT_UPVALUES);
+					constant(GETARG_B(i));
+					mw.visitInsn(AALOAD);
+					loadRegister(a);
+					mw.visitMethodInsn(INVOKEVIRTUAL, UPVALUE, "setValue", "(" + D_LUA_VALUE + ")V", false);
+				}
+
+				case OP_SETTABLE -> { // A B C: R(A)[RK(B)]:= RK(C)
+					int b = GETARG_B(i);
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					loadRegister(a);
+					if (isStringConstant(b)) {
+						loadStringConstant(b & 0x0ff);
+						loadRk(GETARG_C(i));
+						loadCacheIndex(pc);
+						constant(a);
+						mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "setTable", CACHED_SET_DESC, false);
+					} else {
+						loadRk(b);
+						loadRk(GETARG_C(i));
+						constant(a);
+						mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "setTable", "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + D_LUA_VALUE + "I)V", false);
+					}
+				}
+
+				case OP_NEWTABLE -> { // A B C: R(A):= {} (size = B,C)
+					beginStore(a);
+					mw.visitTypeInsn(NEW, LUA_TABLE);
+					mw.visitInsn(DUP);
+					constant(LuaInterpreter.luaO_fb2int(GETARG_B(i)));
+					constant(LuaInterpreter.luaO_fb2int(GETARG_C(i)));
+					mw.visitMethodInsn(INVOKESPECIAL, LUA_TABLE, "<init>", "(II)V", false);
+					endStore();
+				}
+
+				case OP_SELF -> { // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
+					int b = GETARG_B(i);
+					loadRegister(b);
+					mw.visitVarInsn(ASTORE, SLOT_TEMP);
+
+					beginStore(a + 1);
+					mw.visitVarInsn(ALOAD, SLOT_TEMP);
+					endStore();
+
+					beginStore(a);
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					mw.visitVarInsn(ALOAD, SLOT_TEMP);
+					getTable(pc, GETARG_C(i), b);
+					endStore();
+				}
+
+				case OP_ADD -> binary(i, "add"); // A B C: R(A):= RK(B) + RK(C)
+				case OP_SUB -> binary(i, "sub"); // A B C: R(A):= RK(B) - RK(C)
+				case OP_MUL -> binary(i, "mul"); // A B C: R(A):= RK(B) * RK(C)
+				case OP_DIV -> binary(i, "div"); // A B C: R(A):= RK(B) / RK(C)
+				case OP_MOD -> binary(i, "mod"); // A B C: R(A):= RK(B) % RK(C)
+				case OP_POW -> binary(i, "pow"); // A B C: R(A):= RK(B) ^ RK(C)
+
+				case OP_UNM -> { // A B: R(A):= -R(B)
+					int b = GETARG_B(i);
+					beginStore(a);
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					loadRk(b);
+					constant(b);
+					mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "neg", "(" + D_LUA_STATE + D_LUA_VALUE + "I)" + D_LUA_VALUE, false);
+					endStore();
+				}
+
+				case OP_NOT -> { // A B: R(A):= not R(B)
+					Label isTrue = new Label(), store = new Label();
+					mw.visitVarInsn(ALOAD, SLOT_STACK);
+					constant(a);
+					loadRegister(GETARG_B(i));
+					mw.visitMethodInsn(INVOKEVIRTUAL, LUA_VALUE, "toBoolean", "()Z", false);
+					mw.visitJumpInsn(IFNE, isTrue);
+					mw.visitFieldInsn(GETSTATIC, CONSTANTS, "TRUE", "L" + Type.getInternalName(LuaBoolean.class) + ";");
+					mw.visitJumpInsn(GOTO, store);
+					mw.visitLabel(isTrue);
+					mw.visitFieldInsn(GETSTATIC, CONSTANTS, "FALSE", "L" + Type.getInternalName(LuaBoolean.class) + ";");
+					mw.visitLabel(store);
+					mw.visitInsn(AASTORE);
+				}
+
+				case OP_LEN -> { // A B: R(A):= length of R(B)
+					int b = GETARG_B(i);
+					beginStore(a);
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					loadRegister(b);
+					constant(b);
+					mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "length", "(" + D_LUA_STATE + D_LUA_VALUE + "I)" + D_LUA_VALUE, false);
+					endStore();
+				}
+
+				case OP_CONCAT -> { // A B C: R(A):= R(B).. ... ..R(C)
+					int b = GETARG_B(i);
+					int c = GETARG_C(i);
+					setTop(c + 1);
+
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					mw.visitVarInsn(ALOAD, SLOT_DI);
+					mw.visitVarInsn(ALOAD, SLOT_STACK);
+					constant(c + 1);
+					constant(c - b + 1);
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "concat", "(" + D_LUA_STATE + D_DEBUG_FRAME + D_STACK + "II)V", false);
+
+					beginStore(a);
+					loadRegister(b);
+					endStore();
+					setTop(b);
+				}
+
+				case OP_JMP -> { // sBx: pc+=sBx
+					int target = pc + 1 + GETARG_sBx(i);
+					if (target <= pc) checkInterrupt(target);
+					jump(target);
+				}
+
+				case OP_EQ -> compare(pc, "eq"); // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
+				case OP_LT -> compare(pc, "lt"); // A B C: if ((RK(B) <  RK(C)) ~= A) then pc++
+				case OP_LE -> compare(pc, "le"); // A B C: if ((RK(B) <= RK(C)) ~= A) then pc++
+
+				case OP_TEST -> { // A C: if not (R(A) <=> C) then pc++
+					loadRegister(a);
+					mw.visitMethodInsn(INVOKEVIRTUAL, LUA_VALUE, "toBoolean", "()Z", false);
+					branch(GETARG_C(i) != 0 ? IFNE : IFEQ, pc, branchTarget(pc));
+					jump(pc + 2);
+				}
+
+				case OP_TESTSET -> { // A B C: if (R(B) <=> C) then R(A):= R(B) else pc++
+					Label skip = new Label();
+					loadRegister(GETARG_B(i));
+					mw.visitVarInsn(ASTORE, SLOT_TEMP);
+					mw.visitVarInsn(ALOAD, SLOT_TEMP);
+					mw.visitMethodInsn(INVOKEVIRTUAL, LUA_VALUE, "toBoolean", "()Z", false);
+					mw.visitJumpInsn(GETARG_C(i) != 0 ? IFEQ : IFNE, skip);
+					beginStore(a);
+					mw.visitVarInsn(ALOAD, SLOT_TEMP);
+					endStore();
+					int target = branchTarget(pc);
+					if (target <= pc) checkInterrupt(target);
+					jump(target);
+					mw.visitLabel(skip);
+					jump(pc + 2);
+				}
+
+				case OP_CALL -> { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1))
+					int b = GETARG_B(i);
+					Label nativeCall = new Label();
+					loadRegister(a);
+					mw.visitVarInsn(ASTORE, SLOT_TEMP);
+					mw.visitVarInsn(ALOAD, SLOT_TEMP);
+					mw.visitTypeInsn(INSTANCEOF, FUNCTION);
+					mw.visitJumpInsn(IFEQ, nativeCall);
+
+					// Lua functions are executed by pushing a new frame and returning to the main loop.
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					mw.visitVarInsn(ALOAD, SLOT_TEMP);
+					mw.visitTypeInsn(CHECKCAST, FUNCTION);
+					mw.visitVarInsn(ALOAD, SLOT_STACK);
+					constant(a + 1);
+					if (b > 0) {
+						constant(b - 1);
+						mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "setupCall", "(" + D_LUA_STATE + D_FUNCTION + D_STACK + "II)" + D_DEBUG_FRAME, false);
+					} else {
+						// di.top - di.extras.count() - (a + 1)
+						mw.visitVarInsn(ALOAD, SLOT_DI);
+						mw.visitFieldInsn(GETFIELD, DEBUG_FRAME, "top", "I");
+						loadExtras();
+						mw.visitMethodInsn(INVOKEVIRTUAL, VARARGS, "count", "()I", false);
+						mw.visitInsn(ISUB);
+						constant(a + 1);
+						mw.visitInsn(ISUB);
+						loadExtras();
+						mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "setupCall", "(" + D_LUA_STATE + D_FUNCTION + D_STACK + "II" + D_VARARGS + ")" + D_DEBUG_FRAME, false);
+					}
+					mw.visitInsn(POP);
+					mw.visitInsn(ACONST_NULL);
+					mw.visitInsn(ARETURN);
+
+					mw.visitLabel(nativeCall);
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					mw.visitVarInsn(ALOAD, SLOT_DI);
+					mw.visitVarInsn(ALOAD, SLOT_STACK);
+					mw.visitVarInsn(ALOAD, SLOT_TEMP);
+					constant(i);
+					constant(a);
+					constant(b);
+					constant(GETARG_C(i));
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "nativeCall", "(" + D_LUA_STATE + D_DEBUG_FRAME + D_STACK + D_LUA_VALUE + "IIII)V", false);
+				}
+
+				case OP_TAILCALL -> { // A B C: return R(A)(R(A+1), ... ,R(A+B-1))
+					Label next = new Label();
+					loadFrameArgs();
+					constant(a);
+					constant(GETARG_B(i));
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "tailCall", "(" + D_LUA_STATE + D_DEBUG_STATE + D_DEBUG_FRAME + D_STACK + "II)" + D_DEBUG_FRAME, false);
+					mw.visitJumpInsn(IFNULL, next);
+					mw.visitInsn(ACONST_NULL);
+					mw.visitInsn(ARETURN);
+					mw.visitLabel(next);
+				}
+
+				case OP_RETURN -> { // A B: return R(A), ... ,R(A+B-2) (see note)
+					loadFrameArgs();
+					constant(a);
+					constant(GETARG_B(i));
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "doReturn", "(" + D_LUA_STATE + D_DEBUG_STATE + D_DEBUG_FRAME + D_STACK + "II)" + D_VARARGS, false);
+					mw.visitInsn(ARETURN);
+				}
+
+				case OP_FORLOOP -> { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
+					mw.visitVarInsn(ALOAD, SLOT_STACK);
+					constant(a);
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "forLoop", "(" + D_STACK + "I)Z", false);
+					branch(IFNE, pc, pc + 1 + GETARG_sBx(i));
+				}
+
+				case OP_FORPREP -> { // A sBx: R(A)-=R(A+2): pc+=sBx
+					mw.visitVarInsn(ALOAD, SLOT_STACK);
+					constant(a);
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "forPrep", "(" + D_STACK + "I)V", false);
+					jump(pc + 1 + GETARG_sBx(i));
+				}
+
+				case OP_TFORLOOP -> { // A C: R(A+3), ... ,R(A+2+C):= R(A)(R(A+1), R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3) else pc++
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					mw.visitVarInsn(ALOAD, SLOT_DI);
+					mw.visitVarInsn(ALOAD, SLOT_STACK);
+					constant(a);
+					constant(GETARG_C(i));
+					loadCacheIndex(pc);
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "tforLoop", "(" + D_LUA_STATE + D_DEBUG_FRAME + D_STACK + "II[II)Z", false);
+					mw.visitJumpInsn(IFEQ, labels[pc + 2]);
+				}
+
+				case OP_SETLIST -> { // A B C: R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B
+					int c = GETARG_C(i);
+					int next = pc + 1;
+					if (c == 0) c = code[next++];
+
+					mw.visitVarInsn(ALOAD, SLOT_DI);
+					mw.visitVarInsn(ALOAD, SLOT_STACK);
+					constant(a);
+					constant(GETARG_B(i));
+					constant(c);
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "setList", "(" + D_DEBUG_FRAME + D_STACK + "III)V", false);
+					if (next != pc + 1) jump(next);
+				}
+
+				case OP_CLOSE -> { // A : close all variables in the stack up to (>=) R(A)
+					mw.visitVarInsn(ALOAD, SLOT_DI);
+					constant(a);
+					mw.visitMethodInsn(INVOKEVIRTUAL, DEBUG_FRAME, "closeUpvalues", "(I)V", false);
+				}
+
+				case OP_CLOSURE -> { // A Bx: R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
+					int index = GETARG_Bx(i);
+					beginStore(a);
+					mw.visitVarInsn(ALOAD, SLOT_STATE);
+					mw.visitVarInsn(ALOAD, SLOT_DI);
+					mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+					constant(index);
+					constant(pc + 1);
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "closure", "(" + D_LUA_STATE + D_DEBUG_FRAME + D_FUNCTION + "II)" + D_FUNCTION, false);
+					endStore();
+
+					int upvalues = p.children[index].upvalues;
+					if (upvalues > 0) jump(pc + 1 + upvalues);
+				}
+
+				case OP_VARARG -> { // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
+					mw.visitVarInsn(ALOAD, SLOT_DI);
+					mw.visitVarInsn(ALOAD, SLOT_STACK);
+					mw.visitVarInsn(ALOAD, SLOT_VARARGS);
+					constant(a);
+					constant(GETARG_B(i));
+					mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "vararg", "(" + D_DEBUG_FRAME + D_STACK + D_VARARGS + "II)V", false);
+				}
+
+				default -> throw new IllegalStateException("Unknown opcode " + GET_OPCODE(i));
+			}
+		}
+
+		/**
+		 * Whether this instruction can be compiled as part of a sequence of unboxed arithmetic. This requires any
+		 * constant operands to be numbers.
+		 */
+		private boolean isArithmetic(int i) {
+			return switch (GET_OPCODE(i)) {
+				case OP_ADD, OP_SUB, OP_MUL, OP_DIV, OP_MOD, OP_POW -> isNumberRk(GETARG_B(i)) && isNumberRk(GETARG_C(i));
+				case OP_UNM -> isNumberRk(GETARG_B(i));
+				default -> false;
+			};
+		}
+
+		private boolean isNumberRk(int x) {
+			return x <= 0xff || p.constants[x & 0x0ff] instanceof LuaNumber;
+		}
+
+		/**
+		 * Compile a sequence of arithmetic instructions, {@code [start, end)}, keeping registers unboxed.
+		 * <p>
+		 * Each register used by the sequence is held in a {@code double} local. Results are only boxed and written
+		 * back to the stack at the end of the sequence, so temporaries which are overwritten within it (such as those
+		 * in {@code x * x + y * y}) are never allocated.
+		 * <p>
+		 * As no instruction in this fast path can error or yield, we skip the per-instruction bookkeeping after the
+		 * first instruction. This is only safe when there are no line or count hooks, so we fall back to the normal
+		 * code when they are active. Similarly, if an operand is not a number, we write back any pending results and
+		 * continue with the normal code for that instruction.
+		 */
+		private void arithmetic(int start, int end) {
+			Label slow = new Label();
+			instructionHeader(start);
+			mw.visitVarInsn(ALOAD, SLOT_DS);
+			mw.visitMethodInsn(INVOKEVIRTUAL, DEBUG_STATE, "hasInstructionHook", "()Z", false);
+			mw.visitJumpInsn(IFNE, slow);
+
+			byte[] registers = new byte[p.maxStackSize];
+			List<Fallback> fallbacks = new ArrayList<>();
+			for (int pc = start; pc < end; pc++) {
+				int i = code[pc];
+				int b = GETARG_B(i), c = GETARG_C(i);
+
+				Fallback fallback = new Fallback(new Label(), pending(registers), pc == start ? slow : labels[pc]);
+				boolean guarded = unbox(b, registers, fallback.label);
+				if (GET_OPCODE(i) != OP_UNM) guarded |= unbox(c, registers, fallback.label);
+				if (guarded) fallbacks.add(fallback);
+
+				loadUnboxed(b);
+				switch (GET_OPCODE(i)) {
+					case OP_ADD -> {
+						loadUnboxed(c);
+						mw.visitInsn(DADD);
+					}
+					case OP_SUB -> {
+						loadUnboxed(c);
+						mw.visitInsn(DSUB);
+					}
+					case OP_MUL -> {
+						loadUnboxed(c);
+						mw.visitInsn(DMUL);
+					}
+					case OP_DIV -> {
+						loadUnboxed(c);
+						mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "div", "(DD)D", false);
+					}
+					case OP_MOD -> {
+						loadUnboxed(c);
+						mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "mod", "(DD)D", false);
+					}
+					case OP_POW -> {
+						loadUnboxed(c);
+						mw.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D", false);
+					}
+					case OP_UNM -> mw.visitInsn(DNEG);
+					default -> throw new IllegalStateException("Unknown opcode " + GET_OPCODE(i));
+				}
+
+				int a = GETARG_A(i);
+				mw.visitVarInsn(DSTORE, SLOT_NUMBERS + a * 2);
+				registers[a] = PENDING;
+			}
+
+			writeBack(pending(registers));
+			jump(end);
+
+			for (Fallback fallback : fallbacks) {
+				mw.visitLabel(fallback.label);
+				writeBack(fallback.pending);
+				mw.visitJumpInsn(GOTO, fallback.target);
+			}
+
+			// The normal code, used when hooks are active, or when jumping into the middle of the sequence.
+			mw.visitLabel(slow);
+			instructionBody(start);
+			for (int pc = start + 1; pc < end; pc++) instruction(pc);
+		}
+
+		/**
+		 * Ensure the value of RK(x) is available as a double, jumping to {@code fallback} if it is not a number.
+		 *
+		 * @return Whether this emitted a check which may jump to {@code fallback}.
+		 */
+		private boolean unbox(int x, byte[] registers, Label fallback) {
+			if (x > 0xff || registers[x] != BOXED) return false;
+
+			loadRegister(x);
+			mw.visitVarInsn(ASTORE, SLOT_TEMP);
+			mw.visitVarInsn(ALOAD, SLOT_TEMP);
+			mw.visitTypeInsn(INSTANCEOF, LUA_NUMBER);
+			mw.visitJumpInsn(IFEQ, fallback);
+			mw.visitVarInsn(ALOAD, SLOT_TEMP);
+			mw.visitMethodInsn(INVOKEVIRTUAL, LUA_VALUE, "toDouble", "()D", false);
+			mw.visitVarInsn(DSTORE, SLOT_NUMBERS + x * 2);
+			registers[x] = UNBOXED;
+			return true;
+		}
+
+		private void loadUnboxed(int x) {
+			if (x > 0xff) {
+				mw.visitLdcInsn(p.constants[x & 0x0ff].toDouble());
+			} else {
+				mw.visitVarInsn(DLOAD, SLOT_NUMBERS + x * 2);
+			}
+		}
+
+		private static int[] pending(byte[] registers) {
+			int count = 0;
+			for (byte register : registers) if (register == PENDING) count++;
+
+			int[] pending = new int[count];
+			for (int i = 0, j = 0; i < registers.length; i++) if (registers[i] == PENDING) pending[j++] = i;
+			return pending;
+		}
+
+		private void writeBack(int[] registers) {
+			for (int register : registers) {
+				beginStore(register);
+				mw.visitVarInsn(DLOAD, SLOT_NUMBERS + register * 2);
+				mw.visitMethodInsn(INVOKESTATIC, LUA_DOUBLE, "valueOf", "(D)L" + LUA_NUMBER + ";", false);
+				endStore();
+			}
+		}
+
+		/**
+		 * Index the table on the top of the stack with RK(c), using the inline cache if the key is a constant string.
+		 */
+		private void getTable(int pc, int c, int stack) {
+			if (isStringConstant(c)) {
+				loadStringConstant(c & 0x0ff);
+				loadCacheIndex(pc);
+				constant(stack);
+				mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "getTable", CACHED_GET_DESC, false);
+			} else {
+				loadRk(c);
+				constant(stack);
+				mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, "getTable", "(" + D_LUA_STATE + D_LUA_VALUE + D_LUA_VALUE + "I)" + D_LUA_VALUE, false);
+			}
+		}
+
+		private boolean isStringConstant(int x) {
+			return x > 0xff && p.constants[x & 0x0ff] instanceof LuaString;
+		}
+
+		private void loadStringConstant(int index) {
+			loadConstant(index);
+			mw.visitTypeInsn(CHECKCAST, LUA_STRING);
+		}
+
+		private void loadCacheIndex(int pc) {
+			mw.visitVarInsn(ALOAD, SLOT_CACHE);
+			constant(pc << 1);
+		}
+
+		private void binary(int i, String name) {
+			int b = GETARG_B(i);
+			int c = GETARG_C(i);
+			beginStore(GETARG_A(i));
+			mw.visitVarInsn(ALOAD, SLOT_STATE);
+			loadRk(b);
+			loadRk(c);
+			constant(b);
+			constant(c);
+			mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, name, BINARY_DESC, false);
+			endStore();
+		}
+
+		private void compare(int pc, String name) {
+			int i = code[pc];
+			mw.visitVarInsn(ALOAD, SLOT_STATE);
+			loadRk(GETARG_B(i));
+			loadRk(GETARG_C(i));
+			mw.visitMethodInsn(INVOKESTATIC, OPERATION_HELPER, name, COMPARE_DESC, false);
+			// We assume the next instruction is a jump and read the branch from there.
+			branch(GETARG_A(i) != 0 ? IFNE : IFEQ, pc, branchTarget(pc));
+			jump(pc + 2);
+		}
+
+		/**
+		 * Emit a conditional jump ({@link org.objectweb.asm.Opcodes#IFEQ} or {@link org.objectweb.asm.Opcodes#IFNE})
+		 * from the instruction at {@code pc} to {@code target}, checking for interrupts if this is a backwards jump.
+		 */
+		private void branch(int opcode, int pc, int target) {
+			if (target > pc) {
+				mw.visitJumpInsn(opcode, labels[target]);
+				return;
+			}
+
+			Label skip = new Label();
+			mw.visitJumpInsn(opcode == IFEQ ? IFNE : IFEQ, skip);
+			checkInterrupt(target);
+			jump(target);
+			mw.visitLabel(skip);
+		}
+
+		/**
+		 * Check for interrupts before jumping backwards to {@code target}.
+		 *
+		 * @see LuaInterpreter#handleInterrupt(LuaState, DebugFrame, int)
+		 */
+		private void checkInterrupt(int target) {
+			Label skip = new Label();
+			mw.visitVarInsn(ALOAD, SLOT_STATE);
+			mw.visitMethodInsn(INVOKEVIRTUAL, LUA_STATE, "isInterrupted", "()Z", false);
+			mw.visitJumpInsn(IFEQ, skip);
+			mw.visitVarInsn(ALOAD, SLOT_STATE);
+			mw.visitVarInsn(ALOAD, SLOT_DI);
+			constant(target);
+			mw.visitMethodInsn(INVOKESTATIC, INTERPRETER, "handleInterrupt", "(" + D_LUA_STATE + D_DEBUG_FRAME + "I)V", false);
+			mw.visitLabel(skip);
+		}
+
+		/**
+		 * Get the target of a conditional instruction, read from the following jump.
+		 */
+		private int branchTarget(int pc) {
+			return pc + 2 + GETARG_sBx(code[pc + 1]);
+		}
+
+		private void jump(int pc) {
+			mw.visitJumpInsn(GOTO, labels[pc]);
+		}
+
+		private void loadFrameArgs() {
+			mw.visitVarInsn(ALOAD, SLOT_STATE);
+			mw.visitVarInsn(ALOAD, SLOT_DS);
+			mw.visitVarInsn(ALOAD, SLOT_DI);
+			mw.visitVarInsn(ALOAD, SLOT_STACK);
+		}
+
+		private void loadEnv() {
+			mw.visitVarInsn(ALOAD, SLOT_FUNCTION);
+			mw.visitMethodInsn(INVOKEVIRTUAL, FUNCTION, "getfenv", "()L" + LUA_TABLE + ";", false);
+		}
+
+		private void loadExtras() {
+			mw.visitVarInsn(ALOAD, SLOT_DI);
+			mw.visitFieldInsn(GETFIELD, DEBUG_FRAME, "extras", D_VARARGS);
+		}
+
+		private void setTop(int top) {
+			mw.visitVarInsn(ALOAD, SLOT_DI);
+			constant(top);
+			mw.visitFieldInsn(PUTFIELD, DEBUG_FRAME, "top", "I");
+		}
+
+		private void loadRegister(int register) {
+			mw.visitVarInsn(ALOAD, SLOT_STACK);
+			constant(register);
+			mw.visitInsn(AALOAD);
+		}
+
+		private void loadConstant(int index) {
+			mw.visitVarInsn(ALOAD, SLOT_K);
+			constant(index);
+			mw.visitInsn(AALOAD);
+		}
+
+		private void loadRk(int x) {
+			if (x > 0xff) {
+				loadConstant(x & 0x0ff);
+			} else {
+				loadRegister(x);
+			}
+		}
+
+		private void beginStore(int register) {
+			mw.visitVarInsn(ALOAD, SLOT_STACK);
+			constant(register);
+		}
+
+		private void endStore() {
+			mw.visitInsn(AASTORE);
+		}
+
+		private void constant(int value) {
+			if (value >= -1 && value <= 5) {
+				mw.visitInsn(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				mw.visitIntInsn(BIPUSH, value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				mw.visitIntInsn(SIPUSH, value);
+			} else {
+				mw.visitLdcInsn(value);
+			}
+		}
+	}
+
+	/**
+	 * A point where an unboxed arithmetic sequence falls back to the normal code.
+	 *
+	 * @param label   The label to jump to in order to fall back.
+	 * @param pending The registers which must be written back to the stack before falling back.
+	 * @param target  The normal code to continue with.
+	 */
+	private record Fallback(Label label, int[] pending, Label target) {
+	}
+}
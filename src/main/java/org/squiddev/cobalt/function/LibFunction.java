@@ -147,6 +147,23 @@ public abstract class LibFunction extends LuaFunction {
 		return name != null ? name : super.toString();
 	}
 
+	/**
+	 * Get an argument for {@link #invokeInto(LuaState, LuaValue[], int, int, int)}.
+	 */
+	static LuaValue arg(LuaValue[] stack, int base, int nargs, int arg) {
+		return arg <= nargs ? stack[base + arg] : Constants.NIL;
+	}
+
+	/**
+	 * Write a single result for {@link #invokeInto(LuaState, LuaValue[], int, int, int)}, padding any remaining
+	 * results with {@link Constants#NIL}.
+	 */
+	static void setResult(LuaValue[] stack, int base, int nresults, LuaValue result) {
+		if (nresults == 0) return;
+		stack[base] = result;
+		for (int i = 1; i < nresults; i++) stack[base + i] = Constants.NIL;
+	}
+
 	public static void setGlobalLibrary(LuaState state, LuaTable env, String name, LuaValue library) {
 		env.rawset(name, library);
 		state.registry().getSubTable(Constants.LOADED).rawset(name, library);
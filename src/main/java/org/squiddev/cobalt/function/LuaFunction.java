@@ -183,4 +183,27 @@ public abstract class LuaFunction extends LuaValue {
 	 * @see #call(LuaState, LuaValue)
 	 */
 	public abstract Varargs invoke(LuaState state, Varargs args) throws LuaError, UnwindThrowable;
+
+	/**
+	 * Call {@code this} with arguments read from an array of registers, and write a fixed number of return values back
+	 * into it.
+	 * <p>
+	 * This is used by the interpreter to call Java functions. The default implementation builds a {@link Varargs} and
+	 * calls {@link #invoke(LuaState, Varargs)}: subclasses may override this to read their arguments and write their
+	 * results directly, without allocating.
+	 *
+	 * @param state    The current lua state
+	 * @param stack    The registers to read arguments from and write results to.
+	 * @param base     The offset of the function in {@code stack}. Arguments start at {@code base + 1}, and results are
+	 *                 written starting at {@code base}.
+	 * @param nargs    The number of arguments.
+	 * @param nresults The number of results to write. Missing results are filled with {@link Constants#NIL}.
+	 * @throws LuaError        If the invoked function throws an error.
+	 * @throws UnwindThrowable If this function transfers control to another coroutine.
+	 * @see #invoke(LuaState, Varargs)
+	 */
+	public void invokeInto(LuaState state, LuaValue[] stack, int base, int nargs, int nresults) throws LuaError, UnwindThrowable {
+		Varargs v = invoke(state, ValueFactory.varargsOfCopy(stack, base + 1, nargs));
+		for (int i = 0; i < nresults; i++) stack[base + i] = v.arg(i + 1);
+	}
 }
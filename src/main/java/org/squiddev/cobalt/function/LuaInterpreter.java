@@ -28,133 +28,173 @@ import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.debug.DebugFrame;
 import org.squiddev.cobalt.debug.DebugState;
 import org.squiddev.cobalt.debug.Upvalue;
+import org.squiddev.cobalt.lib.BaseLib;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.ref.WeakReference;
 
 import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.Lua.*;
 import static org.squiddev.cobalt.LuaDouble.valueOf;
 import static org.squiddev.cobalt.debug.DebugFrame.*;
+import static org.squiddev.cobalt.function.Superinstructions.*;
 
 /**
  * The main interpreter for {@link LuaInterpretedFunction}s.
  */
 public final class LuaInterpreter {
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, int flags) throws LuaError, UnwindThrowable {
-		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		DebugState ds = DebugState.get(state);
+		DebugFrame di = pushFrame(ds, function, flags);
 
-		return setupCallFinish(state, function, NONE, stack, flags);
+		return setupCallFinish(state, ds, di, function.p, NONE);
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		DebugState ds = DebugState.get(state);
+		DebugFrame di = pushFrame(ds, function, flags);
+		LuaValue[] stack = di.stack;
 
 		switch (p.parameters) {
 			case 0 -> {
-				return setupCallFinish(state, function, arg, stack, flags);
+				return setupCallFinish(state, ds, di, p, arg);
 			}
 			default -> {
 				stack[0] = arg;
-				return setupCallFinish(state, function, NONE, stack, flags);
+				return setupCallFinish(state, ds, di, p, NONE);
 			}
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		DebugState ds = DebugState.get(state);
+		DebugFrame di = pushFrame(ds, function, flags);
+		LuaValue[] stack = di.stack;
 
 		switch (p.parameters) {
 			case 0 -> {
-				return setupCallFinish(state, function, p.isVarArg != 0 ? ValueFactory.varargsOf(arg1, arg2) : NONE, stack, flags);
+				return setupCallFinish(state, ds, di, p, p.isVarArg != 0 ? ValueFactory.varargsOf(arg1, arg2) : NONE);
 			}
 			case 1 -> {
 				stack[0] = arg1;
-				return setupCallFinish(state, function, arg2, stack, flags);
+				return setupCallFinish(state, ds, di, p, arg2);
 			}
 			default -> {
 				stack[0] = arg1;
 				stack[1] = arg2;
-				return setupCallFinish(state, function, NONE, stack, flags);
+				return setupCallFinish(state, ds, di, p, NONE);
 			}
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, LuaValue arg3, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		DebugState ds = DebugState.get(state);
+		DebugFrame di = pushFrame(ds, function, flags);
+		LuaValue[] stack = di.stack;
 
 		switch (p.parameters) {
 			case 0 -> {
-				return setupCallFinish(state, function, p.isVarArg != 0 ? ValueFactory.varargsOf(arg1, arg2, arg3) : NONE, stack, flags);
+				return setupCallFinish(state, ds, di, p, p.isVarArg != 0 ? ValueFactory.varargsOf(arg1, arg2, arg3) : NONE);
 			}
 			case 1 -> {
 				stack[0] = arg1;
-				return setupCallFinish(state, function, p.isVarArg != 0 ? ValueFactory.varargsOf(arg2, arg3) : NONE, stack, flags);
+				return setupCallFinish(state, ds, di, p, p.isVarArg != 0 ? ValueFactory.varargsOf(arg2, arg3) : NONE);
 			}
 			case 2 -> {
 				stack[0] = arg1;
 				stack[1] = arg2;
-				return setupCallFinish(state, function, arg3, stack, flags);
+				return setupCallFinish(state, ds, di, p, arg3);
 			}
 			default -> {
 				stack[0] = arg1;
 				stack[1] = arg2;
 				stack[2] = arg3;
-				return setupCallFinish(state, function, NONE, stack, flags);
+				return setupCallFinish(state, ds, di, p, NONE);
 			}
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		DebugState ds = DebugState.get(state);
+		DebugFrame di = pushFrame(ds, function, flags);
+		LuaValue[] stack = di.stack;
 		for (int i = 0; i < p.parameters; i++) stack[i] = varargs.arg(i + 1);
 
-		return setupCallFinish(state, function, p.isVarArg != 0 ? varargs.subargs(p.parameters + 1) : NONE, stack, flags);
+		return setupCallFinish(state, ds, di, p, p.isVarArg != 0 ? varargs.subargs(p.parameters + 1) : NONE);
 	}
 
-	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize) throws LuaError, UnwindThrowable {
+	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		DebugState ds = DebugState.get(state);
+
+		// Calls from Lua copy any variable arguments into the new frame's registers, rather than building a Varargs.
+		int varargCount = p.isVarArg != 0 ? Math.max(argSize - p.parameters, 0) : 0;
+		DebugFrame di = pushFrame(ds, function, 0, varargCount);
+		LuaValue[] stack = di.stack;
 
 		System.arraycopy(args, argStart, stack, 0, Math.min(argSize, p.parameters));
+		if (varargCount > 0) {
+			System.arraycopy(args, argStart + p.parameters, stack, p.maxStackSize + varargCount, varargCount);
+		}
 
-		return setupCallFinish(
-			state, function,
-			p.isVarArg != 0 && argSize > p.parameters ? ValueFactory.varargsOfCopy(args, argStart + p.parameters, argSize - p.parameters) : NONE,
-			stack, 0
-		);
+		return setupCallFinish(state, ds, di, p, p.isVarArg != 0 ? null : NONE);
 	}
 
-	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize, Varargs varargs) throws LuaError, UnwindThrowable {
+	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize, Varargs varargs) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxStackSize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxStackSize);
+		DebugState ds = DebugState.get(state);
 
-		varargs = ValueFactory.varargsOfCopy(args, argStart, argSize, varargs);
-		for (int i = 0; i < p.parameters; i++) stack[i] = varargs.arg(i + 1);
+		int count = argSize + varargs.count();
+		int varargCount = p.isVarArg != 0 ? Math.max(count - p.parameters, 0) : 0;
+		DebugFrame di = pushFrame(ds, function, 0, varargCount);
+		LuaValue[] stack = di.stack;
+
+		for (int i = 0, n = Math.min(count, p.parameters); i < n; i++) {
+			stack[i] = i < argSize ? args[argStart + i] : varargs.arg(i - argSize + 1);
+		}
+		for (int i = 0, start = p.maxStackSize + varargCount; i < varargCount; i++) {
+			int arg = p.parameters + i;
+			stack[start + i] = arg < argSize ? args[argStart + arg] : varargs.arg(arg - argSize + 1);
+		}
 
-		return setupCallFinish(state, function, p.isVarArg != 0 ? varargs.subargs(p.parameters + 1) : NONE, stack, 0);
+		return setupCallFinish(state, ds, di, p, p.isVarArg != 0 ? null : NONE);
 	}
 
-	private static DebugFrame setupCallFinish(LuaState state, LuaInterpretedFunction function, Varargs varargs, LuaValue[] stack, int flags) throws LuaError, UnwindThrowable {
-		Prototype p = function.p;
-		if (p.isVarArg >= VARARG_NEEDSARG) stack[p.parameters] = new LuaTable(varargs);
+	private static DebugFrame pushFrame(DebugState ds, LuaInterpretedFunction function, int flags) throws LuaError {
+		return pushFrame(ds, function, flags, 0);
+	}
 
-		DebugState ds = DebugState.get(state);
+	/**
+	 * Push a new frame for a Lua function. The registers are reused from the last call in this frame where possible,
+	 * so calling a function does not need to allocate a new stack.
+	 * <p>
+	 * If the function's variable arguments are stored in its registers (see {@link DebugFrame#varargCount}), we
+	 * allocate additional space for them, and for copying them into the registers with {@link Lua#OP_VARARG}.
+	 */
+	private static DebugFrame pushFrame(DebugState ds, LuaInterpretedFunction function, int flags, int varargCount) throws LuaError {
 		DebugFrame di = (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
-		di.setFunction(function, varargs, stack);
+		di.setFunction(function, function.p.maxStackSize + 2 * varargCount);
 		di.flags |= flags;
+		di.varargCount = varargCount;
+		return di;
+	}
+
+	private static DebugFrame setupCallFinish(LuaState state, DebugState ds, DebugFrame di, Prototype p, Varargs varargs) throws LuaError, UnwindThrowable {
+		if (p.isVarArg >= VARARG_NEEDSARG) {
+			di.stack[p.parameters] = new LuaTable(varargs != null
+				? varargs
+				: ValueFactory.varargsOfCopy(di.stack, p.maxStackSize + di.varargCount, di.varargCount));
+		}
+
+		TieredCompiler tiered = state.tieredCompiler;
+		if (tiered != null) tiered.onCall(p);
+
+		di.varargs = varargs;
 		di.extras = NONE;
 		di.top = di.pc = 0;
 		ds.onCall(di, NONE);
@@ -168,7 +208,7 @@ public final class LuaInterpreter {
 	 ** (eeeeexxx), where the real value is (1xxx) * 2^(eeeee - 1) if
 	 ** eeeee != 0 and (xxx) otherwise.
 	 */
-	private static int luaO_fb2int(int x) {
+	static int luaO_fb2int(int x) {
 		int e = (x >> 3) & 31;
 		if (e == 0) return x;
 		else return ((x & 7) + 8) << (e - 1);
@@ -182,89 +222,136 @@ public final class LuaInterpreter {
 			// Fetch all info from the function
 			final Prototype p = function.p;
 			final Upvalue[] upvalues = function.upvalues;
-			final int[] code = p.code;
+			final int[] code = p.code, instructions = p.instructions;
 			final LuaValue[] k = p.constants;
+			final int[] cache = p.inlineCache;
+			final Object[] globalCache = p.globalCache;
 
 			// And from the debug info
 			final LuaValue[] stack = di.stack;
 			final Varargs varargs = di.varargs;
 
+			// We only check for interrupts on function entry (and return) and backwards jumps. This is enough to ensure
+			// long-running code can be interrupted, without checking on every instruction.
+			if (state.isInterrupted()) handleInterrupt(state, di, di.pc);
+
+			// If profiling, count every instruction. This forces us to interpret the function, and to go through the
+			// hooked path below.
+			final InstructionProfiler profiler = state.getProfiler();
+			final long[] profile = profiler == null ? null : profiler.counts(p);
+
+			// Hand off to the compiled version of this function, if available.
+			final CompiledPrototype compiled = p.compiled;
+			if (compiled != null && profile == null) {
+				Varargs ret = compiled.execute(state, ds, di, function);
+				if (ret != null) return ret;
+
+				di = ds.getStackUnsafe();
+				function = (LuaInterpretedFunction) di.func;
+				continue;
+			}
+
 			int pc = di.pc;
 
+			// We only need to call ds.onInstruction when line or count hooks are active (or when profiling). Otherwise,
+			// we just need to keep the frame's pc up to date, and can execute the fused instructions (see
+			// Superinstructions).
+			boolean hooked = profile != null || ds.hasInstructionHook();
+
 			// process instructions
 			while (true) {
-				if (state.isInterrupted()) {
+				// pull out instruction
+				int i;
+				if (hooked) {
+					ds.onInstruction(di, pc);
+					if (profile != null) profile[pc]++;
+					i = code[pc++];
+				} else {
 					di.pc = pc;
-					state.handleInterrupt();
+					i = instructions[pc++];
 				}
-				ds.onInstruction(di, pc);
-
-				// pull out instruction
-				int i = code[pc++];
 				int a = ((i >> POS_A) & MAXARG_A);
 
 				// process the instruction
 				switch (((i >> POS_OP) & MAX_OP)) {
 					case OP_MOVE: // A B: R(A):= R(B)
 						stack[a] = stack[(i >>> POS_B) & MAXARG_B];
-						break;
+						continue;
 
 					case OP_LOADK: // A Bx: R(A):= Kst(Bx)
 						stack[a] = k[(i >>> POS_Bx) & MAXARG_Bx];
-						break;
+						continue;
 
 					case OP_LOADBOOL: // A B C: R(A):= (Bool)B: if (C) pc++
 						stack[a] = ((i >>> POS_B) & MAXARG_B) != 0 ? TRUE : FALSE;
 						if (((i >>> POS_C) & MAXARG_C) != 0) pc++; // skip next instruction (if C)
-						break;
+						continue;
 
 					case OP_LOADNIL: { // A B: R(A):= ...:= R(B):= nil
 						int b = ((i >>> POS_B) & MAXARG_B);
 						do {
 							stack[b--] = NIL;
 						} while (b >= a);
-						break;
+						continue;
 					}
 
 					case OP_GETUPVAL: // A B: R(A):= UpValue[B]
 						stack[a] = upvalues[((i >>> POS_B) & MAXARG_B)].getValue();
-						break;
+						continue;
 
-					case OP_GETGLOBAL: // A Bx	R(A):= Gbl[Kst(Bx)]
-						stack[a] = OperationHelper.getTable(state, function.getfenv(), k[(i >>> POS_Bx) & MAXARG_Bx]);
+					case OP_GETGLOBAL: { // A Bx	R(A):= Gbl[Kst(Bx)]
+						int bx = (i >>> POS_Bx) & MAXARG_Bx;
+						stack[a] = k[bx] instanceof LuaString key
+							? OperationHelper.getGlobal(state, function.getfenv(), key, globalCache, bx)
+							: OperationHelper.getTable(state, function.getfenv(), k[bx]);
 						break;
+					}
 
 					case OP_GETTABLE: { // A B C: R(A):= R(B)[RK(C)]
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >>> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.getTable(state, stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b);
+						stack[a] = c > 0xff && k[c & 0x0ff] instanceof LuaString key
+							? OperationHelper.getTable(state, stack[b], key, cache, (pc - 1) << 1, b)
+							: OperationHelper.getTable(state, stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b);
 						break;
 					}
 
-					case OP_SETGLOBAL: // A Bx: Gbl[Kst(Bx)]:= R(A)
-						OperationHelper.setTable(state, function.getfenv(), k[(i >>> POS_Bx) & MAXARG_Bx], stack[a]);
+					case OP_SETGLOBAL: { // A Bx: Gbl[Kst(Bx)]:= R(A)
+						int bx = (i >>> POS_Bx) & MAXARG_Bx;
+						if (k[bx] instanceof LuaString key) {
+							OperationHelper.setGlobal(state, function.getfenv(), key, stack[a], globalCache, bx);
+						} else {
+							OperationHelper.setTable(state, function.getfenv(), k[bx], stack[a]);
+						}
 						break;
+					}
 
 					case OP_SETUPVAL: // A B: UpValue[B]:= R(A)
 						upvalues[(i >>> POS_B) & MAXARG_B].setValue(stack[a]);
-						break;
+						continue;
 
 					case OP_SETTABLE: { // A B C: R(A)[RK(B)]:= RK(C)
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >>> POS_C) & MAXARG_C;
-						OperationHelper.setTable(state, stack[a], b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], a);
+						if (b > 0xff && k[b & 0x0ff] instanceof LuaString key) {
+							OperationHelper.setTable(state, stack[a], key, c > 0xff ? k[c & 0x0ff] : stack[c], cache, (pc - 1) << 1, a);
+						} else {
+							OperationHelper.setTable(state, stack[a], b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], a);
+						}
 						break;
 					}
 
 					case OP_NEWTABLE: // A B C: R(A):= {} (size = B,C)
 						stack[a] = new LuaTable(luaO_fb2int((i >>> POS_B) & MAXARG_B), luaO_fb2int((i >>> POS_C) & MAXARG_C));
-						break;
+						continue;
 
 					case OP_SELF: { // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						LuaValue o = stack[a + 1] = stack[b];
-						stack[a] = OperationHelper.getTable(state, o, c > 0xff ? k[c & 0x0ff] : stack[c], b);
+						stack[a] = c > 0xff && k[c & 0x0ff] instanceof LuaString key
+							? OperationHelper.getTable(state, o, key, cache, (pc - 1) << 1, b)
+							: OperationHelper.getTable(state, o, c > 0xff ? k[c & 0x0ff] : stack[c], b);
 						break;
 					}
 
@@ -318,7 +405,7 @@ public final class LuaInterpreter {
 
 					case OP_NOT: // A B: R(A):= not R(B)
 						stack[a] = stack[(i >>> POS_B) & MAXARG_B].toBoolean() ? FALSE : TRUE;
-						break;
+						continue;
 
 					case OP_LEN: { // A B: R(A):= length of R(B)
 						int b = (i >>> POS_B) & MAXARG_B;
@@ -337,18 +424,33 @@ public final class LuaInterpreter {
 						break;
 					}
 
-					case OP_JMP: // sBx: pc+=sBx
-						pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
-						break;
+					case OP_JMP: { // sBx: pc+=sBx
+						int offset = ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+						pc += offset;
+						if (offset < 0) {
+							if (state.tieredCompiler != null) state.tieredCompiler.onBackEdge(p);
+							if (state.isInterrupted()) {
+								handleInterrupt(state, di, pc);
+								break;
+							}
+						}
+						continue;
+					}
 
 					case OP_EQ: { // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						if (OperationHelper.eq(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
 							// We assume the next instruction is a jump and read the branch from there.
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0) {
+								if (state.tieredCompiler != null) state.tieredCompiler.onBackEdge(p);
+								if (state.isInterrupted()) handleInterrupt(state, di, pc);
+							}
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
@@ -356,9 +458,16 @@ public final class LuaInterpreter {
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						if (OperationHelper.lt(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							// We assume the next instruction is a jump and read the branch from there.
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0) {
+								if (state.tieredCompiler != null) state.tieredCompiler.onBackEdge(p);
+								if (state.isInterrupted()) handleInterrupt(state, di, pc);
+							}
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
@@ -366,18 +475,34 @@ public final class LuaInterpreter {
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						if (OperationHelper.le(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							// We assume the next instruction is a jump and read the branch from there.
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0) {
+								if (state.tieredCompiler != null) state.tieredCompiler.onBackEdge(p);
+								if (state.isInterrupted()) handleInterrupt(state, di, pc);
+							}
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
 					case OP_TEST: // A C: if not (R(A) <=> C) then pc++
 						if (stack[a].toBoolean() == (((i >> POS_C) & MAXARG_C) != 0)) {
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0) {
+								if (state.tieredCompiler != null) state.tieredCompiler.onBackEdge(p);
+								if (state.isInterrupted()) {
+									handleInterrupt(state, di, pc);
+									break;
+								}
+							}
+						} else {
+							pc++;
 						}
-						pc++;
-						break;
+						continue;
 
 					case OP_TESTSET: { // A B C: if (R(B) <=> C) then R(A):= R(B) else pc++
 						/* note: doc appears to be reversed */
@@ -386,128 +511,102 @@ public final class LuaInterpreter {
 						LuaValue val = stack[b];
 						if (val.toBoolean() == (c != 0)) {
 							stack[a] = val;
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							int offset = ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc += offset + 1;
+							if (offset < 0) {
+								if (state.tieredCompiler != null) state.tieredCompiler.onBackEdge(p);
+								if (state.isInterrupted()) {
+									handleInterrupt(state, di, pc);
+									break;
+								}
+							}
+						} else {
+							pc++;
 						}
-						pc++;
-						break;
+						continue;
 					}
 
-					case OP_CALL: { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+					case OP_MOVE_CALL: // MOVE, CALL
+					case OP_GETTABLE_CALL: { // GETTABLE, CALL
 						int b = (i >>> POS_B) & MAXARG_B;
-						int c = ((i >> POS_C) & MAXARG_C);
-
-						LuaValue val = stack[a];
-						if (val instanceof LuaInterpretedFunction) {
-							function = (LuaInterpretedFunction) val;
-							di = b > 0
-								? setupCall(state, function, stack, a + 1, b - 1) // exact arg count
-								: setupCall(state, function, stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
-
-							continue newFrame;
+						if (((i >> POS_OP) & MAX_OP) == OP_MOVE_CALL) {
+							stack[a] = stack[b];
 						} else {
-							nativeCall(state, di, stack, val, i, a, b, c);
-						}
+							int c = (i >>> POS_C) & MAXARG_C;
+							stack[a] = c > 0xff && k[c & 0x0ff] instanceof LuaString key
+								? OperationHelper.getTable(state, stack[b], key, cache, (pc - 1) << 1, b)
+								: OperationHelper.getTable(state, stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b);
 
-						break;
-					}
+							// If __index added a hook, then execute the call as a separate instruction.
+							if (ds.hasInstructionHook()) break;
+						}
 
-					case OP_TAILCALL: { // A B C: return R(A)(R(A+1), ... ,R(A+B-1))
-						int b = (i >>> POS_B) & MAXARG_B;
+						di.pc = pc;
+						i = code[pc++];
+						DebugFrame newDi = call(state, di, stack, i, (i >> POS_A) & MAXARG_A);
+						if (newDi == null) break;
 
-						LuaValue val = stack[a];
-						Varargs args;
-						switch (b) {
-							case 1:
-								args = NONE;
-								break;
-							case 2:
-								args = stack[a + 1];
-								break;
-							default: {
-								Varargs v = di.extras;
-								args = b > 0 ?
-									ValueFactory.varargsOfCopy(stack, a + 1, b - 1) : // exact arg count
-									ValueFactory.varargsOfCopy(stack, a + 1, di.top - v.count() - (a + 1), v); // from prev top
-							}
-						}
+						di = newDi;
+						function = (LuaInterpretedFunction) di.func;
+						continue newFrame;
+					}
 
-						LuaFunction functionVal;
-						if (val.isFunction()) {
-							functionVal = (LuaFunction) val;
-						} else {
-							LuaValue meta = val.metatag(state, Constants.CALL);
-							if (!meta.isFunction()) throw ErrorFactory.operandError(state, val, "call", a);
+					case OP_CALL: { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+						DebugFrame newDi = call(state, di, stack, i, a);
+						if (newDi == null) break;
 
-							functionVal = (LuaFunction) meta;
-							args = ValueFactory.varargsOf(val, args);
-						}
+						di = newDi;
+						function = (LuaInterpretedFunction) di.func;
+						continue newFrame;
+					}
 
-						if (functionVal instanceof LuaInterpretedFunction) {
-							int flags = di.flags;
-							di.cleanup();
-							ds.popInfo();
+					case OP_TAILCALL: { // A B C: return R(A)(R(A+1), ... ,R(A+B-1))
+						DebugFrame newDi = tailCall(state, ds, di, stack, a, (i >>> POS_B) & MAXARG_B);
+						if (newDi == null) break;
 
-							// Replace the current frame with a new one.
-							function = (LuaInterpretedFunction) functionVal;
-							di = setupCall(state, function, args, (flags & FLAG_FRESH) | FLAG_TAIL);
+						// Replace the current frame with a new one.
+						di = newDi;
+						function = (LuaInterpretedFunction) di.func;
+						continue newFrame;
+					}
 
-							continue newFrame;
-						} else {
-							Varargs v = functionVal.invoke(state, args);
-							di.top = a + v.count();
-							di.extras = v;
-							break;
-						}
+					case OP_LOADK_RETURN: { // LOADK, RETURN
+						stack[a] = k[(i >>> POS_Bx) & MAXARG_Bx];
+						di.pc = pc;
+						i = code[pc++];
+						Varargs ret = doReturn(state, ds, di, stack, (i >> POS_A) & MAXARG_A, (i >>> POS_B) & MAXARG_B);
+						if (ret != null) return ret;
+
+						di = ds.getStackUnsafe();
+						function = (LuaInterpretedFunction) di.func;
+						continue newFrame;
 					}
 
 					case OP_RETURN: { // A B: return R(A), ... ,R(A+B-2) (see note)
-						int b = (i >>> POS_B) & MAXARG_B;
+						Varargs ret = doReturn(state, ds, di, stack, a, (i >>> POS_B) & MAXARG_B);
+						// If we're a fresh invocation then return to the parent.
+						if (ret != null) return ret;
 
-						int flags = di.flags, top = di.top;
-						Varargs v = di.extras;
-						di.cleanup();
-						ds.onReturn(di);
-
-						Varargs ret = switch (b) {
-							case 0 -> ValueFactory.varargsOfCopy(stack, a, top - v.count() - a, v);
-							case 1 -> NONE;
-							case 2 -> stack[a];
-							default -> ValueFactory.varargsOfCopy(stack, a, b - 1);
-						};
-
-						if ((flags & FLAG_FRESH) != 0) {
-							// If we're a fresh invocation then return to the parent.
-							return ret;
-						} else {
-							di = ds.getStackUnsafe();
-							function = (LuaInterpretedFunction) di.func;
-							resume(state, di, function, ret);
-							continue newFrame;
-						}
+						di = ds.getStackUnsafe();
+						function = (LuaInterpretedFunction) di.func;
+						continue newFrame;
 					}
 
-					case OP_FORLOOP: { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
-						double limit = stack[a + 1].checkDouble();
-						double step = stack[a + 2].checkDouble();
-						double value = stack[a].checkDouble();
-						double idx = step + value;
-						if (0 < step ? idx <= limit : limit <= idx) {
-							stack[a + 3] = stack[a] = valueOf(idx);
+					case OP_FORLOOP: // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
+						if (forLoop(stack, a)) {
+							if (state.tieredCompiler != null) state.tieredCompiler.onBackEdge(p);
 							pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							if (state.isInterrupted()) {
+								handleInterrupt(state, di, pc);
+								break;
+							}
 						}
-					}
-					break;
-
-					case OP_FORPREP: { // A sBx: R(A)-=R(A+2): pc+=sBx
-						LuaNumber init = stack[a].checkNumber("'for' initial value must be a number");
-						LuaNumber limit = stack[a + 1].checkNumber("'for' limit must be a number");
-						LuaNumber step = stack[a + 2].checkNumber("'for' step must be a number");
-						stack[a] = valueOf(init.toDouble() - step.toDouble());
-						stack[a + 1] = limit;
-						stack[a + 2] = step;
+						continue;
+
+					case OP_FORPREP: // A sBx: R(A)-=R(A+2): pc+=sBx
+						forPrep(stack, a);
 						pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
-					}
-					break;
+						continue;
 
 					case OP_TFORLOOP: {
 						/*
@@ -515,17 +614,7 @@ public final class LuaInterpreter {
 							R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
 							else pc++
 						*/
-						Varargs v = di.extras = OperationHelper.invoke(state, stack[a], ValueFactory.varargsOf(stack[a + 1], stack[a + 2]), a);
-						LuaValue val = v.first();
-						if (val.isNil()) {
-							pc++;
-						} else {
-							stack[a + 2] = stack[a + 3] = val;
-							for (int c = (i >> POS_C) & MAXARG_C; c > 1; --c) {
-								stack[a + 2 + c] = v.arg(c);
-							}
-							di.extras = NONE;
-						}
+						if (!tforLoop(state, di, stack, a, (i >> POS_C) & MAXARG_C, cache, (pc - 1) << 1)) pc++;
 						break;
 					}
 
@@ -534,57 +623,359 @@ public final class LuaInterpreter {
 						int c = (i >> POS_C) & MAXARG_C;
 						if (c == 0) c = code[pc++];
 
-						int offset = (c - 1) * LFIELDS_PER_FLUSH;
-						LuaTable tbl = stack[a].checkTable();
-						if (b == 0) {
-							b = di.top - a - 1;
-							int m = b - di.extras.count();
-							int j = 1;
-							for (; j <= m; j++) tbl.rawset(offset + j, stack[a + j]);
-							for (; j <= b; j++) tbl.rawset(offset + j, di.extras.arg(j - m));
-						} else {
-							tbl.presize(offset + b);
-							for (int j = 1; j <= b; j++) tbl.rawset(offset + j, stack[a + j]);
-						}
-						break;
+						setList(di, stack, a, b, c);
+						continue;
 					}
 
 					case OP_CLOSE: { // A : close all variables in the stack up to (>=) R(A)
 						di.closeUpvalues(a);
-						break;
+						continue;
 					}
 
 					case OP_CLOSURE: { // A Bx: R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
-						Prototype newp = p.children[(i >>> POS_Bx) & MAXARG_Bx];
-						LuaInterpretedFunction newcl = new LuaInterpretedFunction(newp, function.getfenv());
-						for (int j = 0, nup = newp.upvalues; j < nup; ++j) {
-							i = code[pc++];
-							int b = (i >>> POS_B) & MAXARG_B;
-							newcl.upvalues[j] = (i & 4) != 0
-								? upvalues[b] // OP_GETUPVAL
-								: di.getUpvalue(b); // OP_MOVE
-						}
+						LuaInterpretedFunction newcl = closure(state, di, function, (i >>> POS_Bx) & MAXARG_Bx, pc);
+						pc += newcl.p.upvalues;
 						stack[a] = newcl;
-						break;
+						continue;
 					}
 
-					case OP_VARARG: { // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
-						int b = (i >>> POS_B) & MAXARG_B;
-						if (b == 0) {
-							di.top = a + varargs.count();
-							di.extras = varargs;
-						} else {
-							for (int j = 1; j < b; ++j) {
-								stack[a + j - 1] = varargs.arg(j);
-							}
-						}
-					}
+					case OP_VARARG: // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
+						vararg(di, stack, varargs, a, (i >>> POS_B) & MAXARG_B);
+						continue;
 				}
+
+				// Any instruction which may run other code (such as a function call or metamethod) could have set or
+				// removed a hook, so check again before the next instruction. Instructions which cannot run other code
+				// skip this by continuing the loop directly.
+				hooked = profile != null || ds.hasInstructionHook();
+			}
+		}
+	}
+
+	/**
+	 * Handle an interrupt before executing an instruction. If the interrupt handler suspends execution, we will resume
+	 * at this instruction.
+	 * <p>
+	 * Interrupts are checked on function entry and on backwards jumps: this includes conditional branches, numeric for
+	 * loops and the jump following a generic for loop's {@link Lua#OP_TFORLOOP}. Any code which runs indefinitely must
+	 * do one of these, so this is enough to guarantee it can be interrupted.
+	 *
+	 * @see LuaState#isInterrupted()
+	 */
+	static void handleInterrupt(LuaState state, DebugFrame di, int pc) throws LuaError, UnwindThrowable {
+		di.pc = pc;
+		state.handleInterrupt();
+	}
+
+	/**
+	 * Perform a call. If the callee is a {@link LuaInterpretedFunction}, this pushes a new frame for the callee.
+	 *
+	 * @return The new frame to execute, or {@code null} if we should continue executing the current frame.
+	 */
+	static DebugFrame call(LuaState state, DebugFrame di, LuaValue[] stack, int i, int a) throws LuaError, UnwindThrowable {
+		int b = (i >>> POS_B) & MAXARG_B;
+		LuaValue val = stack[a];
+		if (val instanceof LuaInterpretedFunction function) {
+			return b > 0
+				? setupCall(state, function, stack, a + 1, b - 1) // exact arg count
+				: setupCall(state, function, stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
+		}
+
+		nativeCall(state, di, stack, val, i, a, b, (i >> POS_C) & MAXARG_C);
+		return null;
+	}
+
+	/**
+	 * Perform a tail call. If the callee is a {@link LuaInterpretedFunction}, this replaces the current frame with the
+	 * callee's.
+	 *
+	 * @return The new frame to execute, or {@code null} if we should continue executing the current frame.
+	 */
+	static DebugFrame tailCall(LuaState state, DebugState ds, DebugFrame di, LuaValue[] stack, int a, int b) throws LuaError, UnwindThrowable {
+		LuaValue val = stack[a];
+		Varargs args;
+		switch (b) {
+			case 1:
+				args = NONE;
+				break;
+			case 2:
+				args = stack[a + 1];
+				break;
+			default: {
+				Varargs v = di.extras;
+				args = b > 0 ?
+					ValueFactory.varargsOfCopy(stack, a + 1, b - 1) : // exact arg count
+					ValueFactory.varargsOfCopy(stack, a + 1, di.top - v.count() - (a + 1), v); // from prev top
+			}
+		}
+
+		LuaFunction functionVal;
+		if (val.isFunction()) {
+			functionVal = (LuaFunction) val;
+		} else {
+			LuaValue meta = val.metatag(state, Constants.CALL);
+			if (!meta.isFunction()) throw ErrorFactory.operandError(state, val, "call", a);
+
+			functionVal = (LuaFunction) meta;
+			args = ValueFactory.varargsOf(val, args);
+		}
+
+		if (functionVal instanceof LuaInterpretedFunction) {
+			int flags = di.flags;
+			di.cleanup();
+			ds.popInfo();
+
+			return setupCall(state, (LuaInterpretedFunction) functionVal, args, (flags & FLAG_FRESH) | FLAG_TAIL);
+		} else {
+			Varargs v = functionVal.invoke(state, args);
+			di.top = a + v.count();
+			di.extras = v;
+			return null;
+		}
+	}
+
+	/**
+	 * Return from the current frame, resuming the parent frame if this was not a fresh invocation.
+	 *
+	 * @return The values to return to the caller, or {@code null} if execution should continue in the parent frame.
+	 */
+	static Varargs doReturn(LuaState state, DebugState ds, DebugFrame di, LuaValue[] stack, int a, int b) throws LuaError, UnwindThrowable {
+		int flags = di.flags, top = di.top;
+		Varargs v = di.extras;
+		di.cleanup();
+
+		// When returning to another Lua function, copy the results directly into its registers. We only need to build
+		// a Varargs when returning to Java, or when the return hook could observe this frame.
+		if ((flags & FLAG_FRESH) == 0 && !ds.hasReturnHook()) {
+			DebugFrame parent = ds.getFrame(1);
+			if (returnInto(parent, stack, a, b == 0 ? top - v.count() - a : b - 1, b == 0 ? top - a : b - 1, v)) {
+				ds.onReturn(di);
+				parent.pc++;
+				return null;
 			}
 		}
+
+		// Read the return values before popping the frame, as that clears its registers.
+		Varargs ret = switch (b) {
+			case 0 -> ValueFactory.varargsOfCopy(stack, a, top - v.count() - a, v);
+			case 1 -> NONE;
+			case 2 -> stack[a];
+			default -> ValueFactory.varargsOfCopy(stack, a, b - 1);
+		};
+
+		ds.onReturn(di);
+
+		if ((flags & FLAG_FRESH) != 0) return ret;
+
+		DebugFrame parent = ds.getStackUnsafe();
+		resume(state, parent, (LuaInterpretedFunction) parent.func, ret);
+		return null;
+	}
+
+	/**
+	 * Copy the values returned by a function into its caller's registers, in the same way {@link #resume} does for
+	 * {@link Lua#OP_CALL}.
+	 *
+	 * @param parent    The calling frame, which is suspended at an {@link Lua#OP_CALL} instruction.
+	 * @param stack     The registers of the returning function.
+	 * @param a         The first register to return.
+	 * @param registers The number of values to return from the registers.
+	 * @param count     The total number of values to return, with any values after {@code registers} read from
+	 *                  {@code extras}.
+	 * @param extras    Additional values to return.
+	 * @return Whether the values could be copied. This fails if the caller accepts a variable number of results, and
+	 * they do not fit into its registers.
+	 */
+	private static boolean returnInto(DebugFrame parent, LuaValue[] stack, int a, int registers, int count, Varargs extras) {
+		Prototype parentP = ((LuaInterpretedFunction) parent.func).p;
+		int i = parentP.code[parent.pc];
+		int parentA = (i >>> POS_A) & MAXARG_A;
+		int c = (i >>> POS_C) & MAXARG_C;
+
+		LuaValue[] parentStack = parent.stack;
+		int wanted = c > 0 ? c - 1 : count;
+		if (parentA + wanted > parentP.maxStackSize + parent.varargCount) return false;
+
+		for (int j = 0; j < wanted; j++) {
+			parentStack[parentA + j] = j < registers ? stack[a + j] : j < count ? extras.arg(j - registers + 1) : NIL;
+		}
+
+		parent.extras = NONE;
+		if (c == 0) parent.top = parentA + count;
+		return true;
 	}
 
-	private static void nativeCall(LuaState state, DebugFrame di, LuaValue[] stack, LuaValue val, int i, int a, int b, int c) throws UnwindThrowable, LuaError {
+	static boolean forLoop(LuaValue[] stack, int a) throws LuaError {
+		if (stack[a] instanceof LuaInteger value && stack[a + 1] instanceof LuaInteger limit && stack[a + 2] instanceof LuaInteger step) {
+			// As the limit is an int, the new index will also fit in one whenever the loop continues.
+			long idx = (long) value.v + step.v;
+			if (0 < step.v ? idx <= limit.v : limit.v <= idx) {
+				stack[a + 3] = stack[a] = LuaInteger.valueOf((int) idx);
+				return true;
+			} else {
+				return false;
+			}
+		}
+
+		double limit = stack[a + 1].checkDouble();
+		double step = stack[a + 2].checkDouble();
+		double value = stack[a].checkDouble();
+		double idx = step + value;
+		if (0 < step ? idx <= limit : limit <= idx) {
+			stack[a + 3] = stack[a] = valueOf(idx);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	static void forPrep(LuaValue[] stack, int a) throws LuaError {
+		LuaNumber init = stack[a].checkNumber("'for' initial value must be a number");
+		LuaNumber limit = stack[a + 1].checkNumber("'for' limit must be a number");
+		LuaNumber step = stack[a + 2].checkNumber("'for' step must be a number");
+		// If all values are integers, then forLoop can use integer arithmetic. LuaInteger.valueOf(long) falls back to a
+		// double if init - step overflows.
+		stack[a] = init instanceof LuaInteger i && limit instanceof LuaInteger && step instanceof LuaInteger s
+			? LuaInteger.valueOf((long) i.v - s.v)
+			: valueOf(init.toDouble() - step.toDouble());
+		stack[a + 1] = limit;
+		stack[a + 2] = step;
+	}
+
+	static boolean tforLoop(LuaState state, DebugFrame di, LuaValue[] stack, int a, int c, int[] cache, int cacheIndex) throws LuaError, UnwindThrowable {
+		// Iterate over tables directly when using pairs or ipairs, rather than calling the iterator function. The inline
+		// cache remembers where the current key is stored, so we don't need to look it up again.
+		LuaValue iterator = stack[a];
+		if (iterator instanceof BaseLib.Next && stack[a + 1] instanceof LuaTable table) {
+			LuaValue key = stack[a + 2], value;
+			int index = cache[cacheIndex];
+			do {
+				index = table.nextIndex(key, index);
+				if (index < 0) return false;
+
+				key = table.keyAt(index);
+				value = table.valueAt(index);
+			} while (value.isNil()); // The value may have been collected if this is a weak table.
+
+			cache[cacheIndex] = index;
+			setForVariables(stack, a, c, key, value);
+			return true;
+		} else if (iterator instanceof BaseLib.INext && stack[a + 1] instanceof LuaTable table && stack[a + 2] instanceof LuaInteger index
+			&& index.v < Integer.MAX_VALUE && table.getMetatable(state) == null && !hasCallHooks(state)) {
+			// inext is a Java function with its own frame, and so calling it is observable by call and return hooks.
+			int key = index.v + 1;
+			LuaValue value = table.rawget(key);
+			if (value.isNil()) return false;
+
+			setForVariables(stack, a, c, ValueFactory.valueOf(key), value);
+			return true;
+		}
+
+		Varargs v = di.extras = OperationHelper.invoke(state, stack[a], ValueFactory.varargsOf(stack[a + 1], stack[a + 2]), a);
+		LuaValue val = v.first();
+		if (val.isNil()) return false;
+
+		stack[a + 2] = stack[a + 3] = val;
+		for (; c > 1; --c) stack[a + 2 + c] = v.arg(c);
+		di.extras = NONE;
+		return true;
+	}
+
+	private static boolean hasCallHooks(LuaState state) {
+		DebugState ds = DebugState.get(state);
+		return ds.hasCallHook() || ds.hasReturnHook();
+	}
+
+	private static void setForVariables(LuaValue[] stack, int a, int c, LuaValue key, LuaValue value) {
+		stack[a + 2] = stack[a + 3] = key;
+		if (c > 1) stack[a + 4] = value;
+		for (; c > 2; --c) stack[a + 2 + c] = NIL;
+	}
+
+	static void setList(DebugFrame di, LuaValue[] stack, int a, int b, int c) throws LuaError {
+		int offset = (c - 1) * LFIELDS_PER_FLUSH;
+		LuaTable tbl = stack[a].checkTable();
+		if (b == 0) {
+			b = di.top - a - 1;
+			int m = b - di.extras.count();
+			int j = 1;
+			for (; j <= m; j++) tbl.rawset(offset + j, stack[a + j]);
+			for (; j <= b; j++) tbl.rawset(offset + j, di.extras.arg(j - m));
+		} else {
+			tbl.presize(offset + b);
+			for (int j = 1; j <= b; j++) tbl.rawset(offset + j, stack[a + j]);
+		}
+	}
+
+	static LuaInterpretedFunction closure(LuaState state, DebugFrame di, LuaInterpretedFunction function, int index, int pc) {
+		Prototype newp = function.p.children[index];
+		int[] code = function.p.code;
+		Upvalue[] upvalues = function.upvalues;
+
+		if (state.cacheClosures) {
+			WeakReference<LuaInterpretedFunction> cachedRef = newp.cachedClosure;
+			LuaInterpretedFunction cached = cachedRef == null ? null : cachedRef.get();
+			if (cached != null && canReuse(cached, di, function, pc)) return cached;
+		}
+
+		LuaInterpretedFunction newcl = new LuaInterpretedFunction(newp, function.getfenv());
+		for (int j = 0, nup = newp.upvalues; j < nup; ++j) {
+			int i = code[pc++];
+			int b = (i >>> POS_B) & MAXARG_B;
+			newcl.upvalues[j] = (i & 4) != 0
+				? upvalues[b] // OP_GETUPVAL
+				: di.getUpvalue(b); // OP_MOVE
+		}
+
+		if (state.cacheClosures) newp.cachedClosure = new WeakReference<>(newcl);
+		return newcl;
+	}
+
+	/**
+	 * Determine if a cached closure can be reused, as it has the same environment and upvalues as the closure we would
+	 * create.
+	 */
+	private static boolean canReuse(LuaInterpretedFunction cached, DebugFrame di, LuaInterpretedFunction function, int pc) {
+		if (cached.getfenv() != function.getfenv()) return false;
+
+		int[] code = function.p.code;
+		Upvalue[] upvalues = function.upvalues, cachedUpvalues = cached.upvalues;
+		for (int j = 0; j < cachedUpvalues.length; j++) {
+			int i = code[pc++];
+			int b = (i >>> POS_B) & MAXARG_B;
+			Upvalue upvalue = (i & 4) != 0
+				? upvalues[b] // OP_GETUPVAL
+				: di.findUpvalue(b); // OP_MOVE
+			if (upvalue != cachedUpvalues[j]) return false;
+		}
+		return true;
+	}
+
+	static void vararg(DebugFrame di, LuaValue[] stack, Varargs varargs, int a, int b) {
+		if (varargs == null) {
+			// The arguments are stored at the end of the registers, after enough space to copy them all into the
+			// registers. This means we can avoid ever constructing a Varargs.
+			int count = di.varargCount, start = ((LuaInterpretedFunction) di.func).p.maxStackSize + count;
+			if (b == 0) {
+				// Copy into a fresh Varargs rather than the registers, so the values are not visible as temporaries.
+				di.top = a + count;
+				di.extras = ValueFactory.varargsOfCopy(stack, start, count);
+			} else {
+				for (int j = 1; j < b; ++j) stack[a + j - 1] = j <= count ? stack[start + j - 1] : NIL;
+			}
+		} else if (b == 0) {
+			di.top = a + varargs.count();
+			di.extras = varargs;
+		} else {
+			for (int j = 1; j < b; ++j) {
+				stack[a + j - 1] = varargs.arg(j);
+			}
+		}
+	}
+
+	static void nativeCall(LuaState state, DebugFrame di, LuaValue[] stack, LuaValue val, int i, int a, int b, int c) throws UnwindThrowable, LuaError {
+		if (val instanceof BaseLib.Select && select(di, stack, a, b, c)) return;
+
 		switch (i & (MASK_B | MASK_C)) {
 			case (1 << POS_B) | (0 << POS_C) -> {
 				Varargs v = di.extras = OperationHelper.invoke(state, val, NONE, a);
@@ -606,6 +997,12 @@ public final class LuaInterpreter {
 			case (4 << POS_B) | (2 << POS_C) ->
 				stack[a] = OperationHelper.call(state, val, stack[a + 1], stack[a + 2], stack[a + 3], a);
 			default -> {
+				// Java functions can read their arguments from, and write their results to, the registers directly.
+				if (b > 0 && c > 0 && val instanceof LuaFunction function) {
+					function.invokeInto(state, stack, a, b - 1, c - 1);
+					return;
+				}
+
 				Varargs args = b > 0 ?
 					ValueFactory.varargsOfCopy(stack, a + 1, b - 1) : // exact arg count
 					ValueFactory.varargsOfCopy(stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
@@ -620,7 +1017,53 @@ public final class LuaInterpreter {
 		}
 	}
 
-	private static void concat(LuaState state, DebugFrame frame, LuaValue[] stack, int top, int total) throws LuaError, UnwindThrowable {
+	/**
+	 * Handle {@code select('#', ...)} and {@code select(n, ...)} directly, reading the arguments from and writing the
+	 * results to the registers.
+	 *
+	 * @return Whether this call was handled. If not, {@code select} should be called as normal.
+	 */
+	private static boolean select(DebugFrame di, LuaValue[] stack, int a, int b, int c) {
+		// The values after the selector: the first are stored in registers, and the remainder in extras.
+		Varargs extras = b == 0 ? di.extras : NONE;
+		int registers = (b == 0 ? di.top - extras.count() : a + b) - (a + 2);
+		if (registers < 0) return false;
+		int count = registers + extras.count();
+
+		LuaValue selector = stack[a + 1];
+		if (selector == BaseLib.Select.COUNT || (selector instanceof LuaString str && str.equals(BaseLib.Select.COUNT))) {
+			stack[a] = ValueFactory.valueOf(count);
+			if (c == 0) {
+				di.top = a + 1;
+				di.extras = NONE;
+			} else {
+				for (int j = 1; j < c - 1; j++) stack[a + j] = NIL;
+			}
+			return true;
+		} else if (selector instanceof LuaInteger index && index.v > 0) {
+			int results = index.v <= count ? count - index.v + 1 : 0, start = index.v - 1;
+			if (c == 0) {
+				if (start < registers) {
+					System.arraycopy(stack, a + 2 + start, stack, a, registers - start);
+					di.top = a + results;
+					di.extras = extras;
+				} else {
+					di.top = a + results;
+					di.extras = results == 0 ? NONE : extras.subargs(start - registers + 1);
+				}
+			} else {
+				for (int j = 0; j < c - 1; j++) {
+					int k = start + j;
+					stack[a + j] = j >= results ? NIL : k < registers ? stack[a + 2 + k] : extras.arg(k - registers + 1);
+				}
+			}
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	static void concat(LuaState state, DebugFrame frame, LuaValue[] stack, int top, int total) throws LuaError, UnwindThrowable {
 		try {
 			do {
 				LuaValue left = stack[top - 2];
@@ -71,6 +71,11 @@ public abstract class OneArgFunction extends LibFunction {
 		return call(state, varargs.first());
 	}
 
+	@Override
+	public final void invokeInto(LuaState state, LuaValue[] stack, int base, int nargs, int nresults) throws LuaError, UnwindThrowable {
+		setResult(stack, base, nresults, call(state, arg(stack, base, nargs, 1)));
+	}
+
 	public interface Signature {
 		LuaValue call(LuaState state, LuaValue arg) throws LuaError, UnwindThrowable;
 	}
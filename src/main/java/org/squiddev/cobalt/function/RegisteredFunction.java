@@ -75,6 +75,33 @@ public class RegisteredFunction {
 		});
 	}
 
+	public static RegisteredFunction of(String name, FourArgFunction.Signature fn) {
+		return new RegisteredFunction(name, () -> new FourArgFunction() {
+			@Override
+			public LuaValue call(LuaState state, LuaValue arg1, LuaValue arg2, LuaValue arg3, LuaValue arg4) throws LuaError, UnwindThrowable {
+				return fn.call(state, arg1, arg2, arg3, arg4);
+			}
+		});
+	}
+
+	public static RegisteredFunction of(String name, FiveArgFunction.Signature fn) {
+		return new RegisteredFunction(name, () -> new FiveArgFunction() {
+			@Override
+			public LuaValue call(LuaState state, LuaValue arg1, LuaValue arg2, LuaValue arg3, LuaValue arg4, LuaValue arg5) throws LuaError, UnwindThrowable {
+				return fn.call(state, arg1, arg2, arg3, arg4, arg5);
+			}
+		});
+	}
+
+	public static RegisteredFunction of(String name, SixArgFunction.Signature fn) {
+		return new RegisteredFunction(name, () -> new SixArgFunction() {
+			@Override
+			public LuaValue call(LuaState state, LuaValue arg1, LuaValue arg2, LuaValue arg3, LuaValue arg4, LuaValue arg5, LuaValue arg6) throws LuaError, UnwindThrowable {
+				return fn.call(state, arg1, arg2, arg3, arg4, arg5, arg6);
+			}
+		});
+	}
+
 	public static RegisteredFunction ofV(String name, VarArgFunction.Signature fn) {
 		return new RegisteredFunction(name, () -> new VarArgFunction() {
 			@Override
@@ -0,0 +1,78 @@
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.*;
+
+import static org.squiddev.cobalt.Constants.NIL;
+
+/**
+ * Abstract base class for Java function implementations that take six arguments and return one value.
+ * <p>
+ * Subclasses need only implement {@link #call(LuaState, LuaValue, LuaValue, LuaValue, LuaValue, LuaValue, LuaValue)} to complete this class.
+ * All other uses of {@link LuaFunction#call(LuaState)}, {@link LuaFunction#invoke(LuaState, Varargs)}, etc, are routed
+ * through this method by this class, dropping or extending arguments with {@code nil} values as required.
+ * <p>
+ * When called from Lua, arguments are read directly from the caller's registers, so calls do not need to allocate a
+ * {@link Varargs}.
+ * <p>
+ * If fewer arguments are required, or variable argument or variable return values, then use one of the related
+ * functions {@link ThreeArgFunction}, {@link FourArgFunction}, {@link FiveArgFunction}, or {@link VarArgFunction}.
+ *
+ * @see LibFunction
+ * @see ThreeArgFunction
+ * @see VarArgFunction
+ */
+public abstract class SixArgFunction extends LibFunction {
+	@Override
+	public final LuaValue call(LuaState state) throws LuaError, UnwindThrowable {
+		return call(state, NIL, NIL, NIL, NIL, NIL, NIL);
+	}
+
+	@Override
+	public final LuaValue call(LuaState state, LuaValue arg) throws LuaError, UnwindThrowable {
+		return call(state, arg, NIL, NIL, NIL, NIL, NIL);
+	}
+
+	@Override
+	public final LuaValue call(LuaState state, LuaValue arg1, LuaValue arg2) throws LuaError, UnwindThrowable {
+		return call(state, arg1, arg2, NIL, NIL, NIL, NIL);
+	}
+
+	@Override
+	public final LuaValue call(LuaState state, LuaValue arg1, LuaValue arg2, LuaValue arg3) throws LuaError, UnwindThrowable {
+		return call(state, arg1, arg2, arg3, NIL, NIL, NIL);
+	}
+
+	@Override
+	public final Varargs invoke(LuaState state, Varargs varargs) throws LuaError, UnwindThrowable {
+		return call(state, varargs.first(), varargs.arg(2), varargs.arg(3), varargs.arg(4), varargs.arg(5), varargs.arg(6));
+	}
+
+	@Override
+	public final void invokeInto(LuaState state, LuaValue[] stack, int base, int nargs, int nresults) throws LuaError, UnwindThrowable {
+		LuaValue result = call(state,
+			arg(stack, base, nargs, 1), arg(stack, base, nargs, 2), arg(stack, base, nargs, 3),
+			arg(stack, base, nargs, 4), arg(stack, base, nargs, 5), arg(stack, base, nargs, 6)
+		);
+		setResult(stack, base, nresults, result);
+	}
+
+	/**
+	 * Call this function with six arguments, returning one value.
+	 *
+	 * @param state The current lua state
+	 * @param arg1  The first argument.
+	 * @param arg2  The second argument.
+	 * @param arg3  The third argument.
+	 * @param arg4  The fourth argument.
+	 * @param arg5  The fifth argument.
+	 * @param arg6  The sixth argument.
+	 * @return The function's result.
+	 * @throws LuaError        If the function throws an error.
+	 * @throws UnwindThrowable If this function transfers control to another coroutine.
+	 */
+	public abstract LuaValue call(LuaState state, LuaValue arg1, LuaValue arg2, LuaValue arg3, LuaValue arg4, LuaValue arg5, LuaValue arg6) throws LuaError, UnwindThrowable;
+
+	public interface Signature {
+		LuaValue call(LuaState state, LuaValue arg1, LuaValue arg2, LuaValue arg3, LuaValue arg4, LuaValue arg5, LuaValue arg6) throws LuaError, UnwindThrowable;
+	}
+}
@@ -0,0 +1,78 @@
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.Lua;
+import org.squiddev.cobalt.Prototype;
+
+import static org.squiddev.cobalt.Lua.*;
+
+/**
+ * Rewrites a function's bytecode into the instruction stream executed by the {@link LuaInterpreter}, replacing common
+ * pairs of instructions with a single fused "superinstruction".
+ * <p>
+ * A fused instruction replaces the first instruction of a pair and executes both of them. The second instruction is
+ * left unchanged, so jumps to it continue to work and the instruction stream has the same length as the original code.
+ * This means program counters (and so line information, tracebacks and the debug library) are the same for both.
+ * <p>
+ * Fused instructions use the opcodes after {@link Lua#OP_VARARG}, which are otherwise unused. The interpreter only
+ * executes the rewritten stream when no instruction hooks are active, as hooks must be called for every instruction.
+ *
+ * @see Prototype#instructions
+ */
+public final class Superinstructions {
+	/**
+	 * {@link Lua#OP_MOVE} followed by {@link Lua#OP_CALL}, such as when calling a function with a local variable.
+	 */
+	static final int OP_MOVE_CALL = NUM_OPCODES;
+
+	/**
+	 * {@link Lua#OP_GETTABLE} followed by {@link Lua#OP_CALL}, such as {@code table.f()}.
+	 */
+	static final int OP_GETTABLE_CALL = NUM_OPCODES + 1;
+
+	/**
+	 * {@link Lua#OP_LOADK} followed by {@link Lua#OP_RETURN}, such as {@code return 0}.
+	 */
+	static final int OP_LOADK_RETURN = NUM_OPCODES + 2;
+
+	private Superinstructions() {
+	}
+
+	/**
+	 * Rewrite a function's code into its fused form.
+	 *
+	 * @param code     The function's code. This is not modified.
+	 * @param children The function's child prototypes, used to skip the pseudo-instructions following
+	 *                 {@link Lua#OP_CLOSURE}.
+	 * @return The rewritten code. This may be the original array if no instructions could be fused.
+	 */
+	public static int[] rewrite(int[] code, Prototype[] children) {
+		int[] instructions = null;
+		for (int pc = 0; pc < code.length - 1; pc++) {
+			int i = code[pc];
+			int fused = switch (GET_OPCODE(i)) {
+				case OP_MOVE -> GET_OPCODE(code[pc + 1]) == OP_CALL ? OP_MOVE_CALL : -1;
+				case OP_GETTABLE -> GET_OPCODE(code[pc + 1]) == OP_CALL ? OP_GETTABLE_CALL : -1;
+				case OP_LOADK -> GET_OPCODE(code[pc + 1]) == OP_RETURN ? OP_LOADK_RETURN : -1;
+				case OP_SETLIST -> {
+					// A SETLIST with C = 0 is followed by the real value of C, rather than an instruction.
+					if (GETARG_C(i) == 0) pc++;
+					yield -1;
+				}
+				case OP_CLOSURE -> {
+					// Skip the MOVE/GETUPVAL pseudo-instructions describing the closure's upvalues.
+					int index = GETARG_Bx(i);
+					if (index < children.length) pc += children[index].upvalues;
+					yield -1;
+				}
+				default -> -1;
+			};
+
+			if (fused >= 0) {
+				if (instructions == null) instructions = code.clone();
+				instructions[pc] = (i & MASK_NOT_OP) | (fused << POS_OP);
+			}
+		}
+
+		return instructions == null ? code : instructions;
+	}
+}
@@ -41,7 +41,8 @@ import static org.squiddev.cobalt.Constants.NIL;
  * If more or less than three arguments are required,
  * or variable argument or variable return values,
  * then use one of the related function
- * {@link ZeroArgFunction}, {@link OneArgFunction}, {@link TwoArgFunction}, or {@link VarArgFunction}.
+ * {@link ZeroArgFunction}, {@link OneArgFunction}, {@link TwoArgFunction}, {@link FourArgFunction},
+ * or {@link VarArgFunction}.
  * <p>
  * See {@link LibFunction} for more information on implementation libraries and library functions.
  *
@@ -73,6 +74,11 @@ public abstract class ThreeArgFunction extends LibFunction {
 		return call(state, varargs.first(), varargs.arg(2), varargs.arg(3));
 	}
 
+	@Override
+	public final void invokeInto(LuaState state, LuaValue[] stack, int base, int nargs, int nresults) throws LuaError, UnwindThrowable {
+		setResult(stack, base, nresults, call(state, arg(stack, base, nargs, 1), arg(stack, base, nargs, 2), arg(stack, base, nargs, 3)));
+	}
+
 	public interface Signature {
 		LuaValue call(LuaState state, LuaValue arg1, LuaValue arg2, LuaValue arg3) throws LuaError, UnwindThrowable;
 	}
@@ -0,0 +1,85 @@
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.Prototype;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Compiles frequently executed functions with the {@link JvmCompiler}.
+ * <p>
+ * The interpreter counts how often each {@link Prototype} is called and how many backwards jumps it takes. Once
+ * either count reaches its threshold, the prototype is queued for compilation on a background thread. The interpreter
+ * switches over to the compiled code the next time a frame of that function is entered or returned to.
+ *
+ * @see LuaState.Builder#tieredCompiler(TieredCompiler)
+ */
+public final class TieredCompiler {
+	public static final int DEFAULT_CALL_THRESHOLD = 1000;
+	public static final int DEFAULT_BACK_EDGE_THRESHOLD = 10000;
+
+	final int callThreshold;
+	final int backEdgeThreshold;
+	private final Executor executor;
+
+	/**
+	 * Create a tiered compiler with the default thresholds, compiling on a shared background thread.
+	 */
+	public TieredCompiler() {
+		this(DEFAULT_CALL_THRESHOLD, DEFAULT_BACK_EDGE_THRESHOLD, BackgroundThread.EXECUTOR);
+	}
+
+	/**
+	 * Create a new tiered compiler.
+	 *
+	 * @param callThreshold     The number of calls after which a function is compiled.
+	 * @param backEdgeThreshold The number of backwards jumps (loop iterations) after which a function is compiled.
+	 * @param executor          The executor to run the compiler on.
+	 */
+	public TieredCompiler(int callThreshold, int backEdgeThreshold, Executor executor) {
+		if (callThreshold <= 0) throw new IllegalArgumentException("callThreshold must be positive");
+		if (backEdgeThreshold <= 0) throw new IllegalArgumentException("backEdgeThreshold must be positive");
+		this.callThreshold = callThreshold;
+		this.backEdgeThreshold = backEdgeThreshold;
+		this.executor = executor;
+	}
+
+	void onCall(Prototype prototype) {
+		if (prototype.compileQueued) return;
+		if (++prototype.callCount >= callThreshold) promote(prototype);
+	}
+
+	void onBackEdge(Prototype prototype) {
+		if (prototype.compileQueued) return;
+		if (++prototype.backEdgeCount >= backEdgeThreshold) promote(prototype);
+	}
+
+	private void promote(Prototype prototype) {
+		// The counters are not synchronised, so several threads may reach the threshold at once. Only queue the
+		// function once.
+		synchronized (prototype) {
+			if (prototype.compileQueued) return;
+			prototype.compileQueued = true;
+		}
+
+		if (prototype.compiled != null) return;
+
+		try {
+			executor.execute(() -> JvmCompiler.compile(prototype));
+		} catch (RejectedExecutionException ignored) {
+			// The executor has been shut down, so just keep interpreting this function.
+		}
+	}
+
+	private static final class BackgroundThread {
+		static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "Cobalt compiler");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+}
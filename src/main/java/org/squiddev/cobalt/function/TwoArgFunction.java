@@ -73,6 +73,11 @@ public abstract class TwoArgFunction extends LibFunction {
 		return call(state, varargs.first(), varargs.arg(2));
 	}
 
+	@Override
+	public final void invokeInto(LuaState state, LuaValue[] stack, int base, int nargs, int nresults) throws LuaError, UnwindThrowable {
+		setResult(stack, base, nresults, call(state, arg(stack, base, nargs, 1), arg(stack, base, nargs, 2)));
+	}
+
 	public interface Signature {
 		LuaValue call(LuaState state, LuaValue arg1, LuaValue arg2) throws LuaError, UnwindThrowable;
 	}
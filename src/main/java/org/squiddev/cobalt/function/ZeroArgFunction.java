@@ -69,6 +69,11 @@ public abstract class ZeroArgFunction extends LibFunction {
 		return call(state);
 	}
 
+	@Override
+	public final void invokeInto(LuaState state, LuaValue[] stack, int base, int nargs, int nresults) throws LuaError, UnwindThrowable {
+		setResult(stack, base, nresults, call(state));
+	}
+
 	public interface Signature {
 		LuaValue call(LuaState state) throws LuaError, UnwindThrowable;
 	}
@@ -34,6 +34,8 @@ import org.squiddev.cobalt.function.LibFunction;
 import org.squiddev.cobalt.function.LuaFunction;
 import org.squiddev.cobalt.function.RegisteredFunction;
 import org.squiddev.cobalt.function.ResumableVarArgFunction;
+import org.squiddev.cobalt.function.SuspendedVarArgFunction;
+import org.squiddev.cobalt.function.VarArgFunction;
 import org.squiddev.cobalt.lib.system.ResourceLoader;
 import org.squiddev.cobalt.unwind.SuspendedTask;
 
@@ -70,7 +72,7 @@ public class BaseLib {
 			RegisteredFunction.ofV("getfenv", BaseLib::getfenv),
 			RegisteredFunction.ofV("getmetatable", BaseLib::getmetatable),
 			RegisteredFunction.ofV("loadstring", BaseLib::loadstring),
-			RegisteredFunction.ofV("select", BaseLib::select),
+			RegisteredFunction.ofFactory("select", Select::new),
 			RegisteredFunction.ofV("type", BaseLib::type),
 			RegisteredFunction.ofV("rawequal", BaseLib::rawequal),
 			RegisteredFunction.ofV("rawget", BaseLib::rawget),
@@ -81,7 +83,7 @@ public class BaseLib {
 			RegisteredFunction.ofV("pairs", this::pairs),
 			RegisteredFunction.ofV("ipairs", this::ipairs),
 			RegisteredFunction.ofV("rawlen", BaseLib::rawlen),
-			RegisteredFunction.ofV("next", BaseLib::next),
+			RegisteredFunction.ofFactory("next", Next::new),
 			RegisteredFunction.ofFactory("pcall", PCall::new),
 			RegisteredFunction.ofFactory("xpcall", XpCall::new),
 			RegisteredFunction.ofFactory("load", Load::new),
@@ -89,7 +91,7 @@ public class BaseLib {
 
 		// remember next, and inext for use in pairs and ipairs
 		next = env.rawget("next");
-		inext = RegisteredFunction.ofS("inext", BaseLib::inext).create();
+		inext = RegisteredFunction.ofFactory("inext", INext::new).create();
 	}
 
 	private static LuaValue error(LuaState state, LuaValue arg1, LuaValue arg2) throws LuaError {
@@ -154,13 +156,27 @@ public class BaseLib {
 		return BaseLib.loadStream(state, script.toInputStream(), args.arg(2).optLuaString(script));
 	}
 
-	private static Varargs select(LuaState state, Varargs args) throws LuaError {
-		// select(f, ...) -> value1, ...
-		int n = args.count() - 1;
-		if (args.first().equals(valueOf("#"))) return valueOf(n);
-		int i = args.arg(1).checkInteger();
-		if (i == 0 || i < -n) throw ErrorFactory.argError(1, "index out of range");
-		return args.subargs(i < 0 ? n + i + 2 : i + 1);
+	/**
+	 * The {@code select} function.
+	 * <p>
+	 * The interpreter recognises calls to this function, and handles the common cases of {@code select('#', ...)} and
+	 * {@code select(n, ...)} without constructing a {@link Varargs}.
+	 */
+	public static final class Select extends VarArgFunction {
+		public static final LuaString COUNT = valueOf("#");
+
+		private Select() {
+		}
+
+		@Override
+		public Varargs invoke(LuaState state, Varargs args) throws LuaError {
+			// select(f, ...) -> value1, ...
+			int n = args.count() - 1;
+			if (args.first().equals(COUNT)) return valueOf(n);
+			int i = args.arg(1).checkInteger();
+			if (i == 0 || i < -n) throw ErrorFactory.argError(1, "index out of range");
+			return args.subargs(i < 0 ? n + i + 2 : i + 1);
+		}
 	}
 
 	private static Varargs type(LuaState state, Varargs args) throws LuaError {
@@ -246,26 +262,72 @@ public class BaseLib {
 		};
 	}
 
-	private static Varargs next(LuaState state, Varargs args) throws LuaError {
-		// next( table, [index] ) -> next-index, next-value
-		return args.arg(1).checkTable().next(args.arg(2));
-	}
+	/**
+	 * The {@code next} function, as returned by {@code pairs}.
+	 * <p>
+	 * The interpreter recognises this function in generic for loops, and iterates over the table directly rather than
+	 * calling it.
+	 */
+	public static final class Next extends VarArgFunction {
+		private Next() {
+		}
+
+		@Override
+		public Varargs invoke(LuaState state, Varargs args) throws LuaError {
+			// next( table, [index] ) -> next-index, next-value
+			return args.arg(1).checkTable().next(args.arg(2));
+		}
+
+		@Override
+		public void invokeInto(LuaState state, LuaValue[] stack, int base, int nargs, int nresults) throws LuaError {
+			// Write the key and value straight into the caller's registers, rather than returning them as a Varargs.
+			LuaTable table = (nargs >= 1 ? stack[base + 1] : NIL).checkTable();
+			LuaValue key = nargs >= 2 ? stack[base + 2] : NIL, value;
+			int index = -1;
+			do {
+				index = table.nextIndex(key, index);
+				if (index < 0) {
+					key = value = NIL;
+					break;
+				}
+
+				key = table.keyAt(index);
+				value = table.valueAt(index);
+			} while (value.isNil()); // The value may have been collected if this is a weak table.
 
-	private static Varargs inext(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
-		// inext( table, [int-index] ) -> next-index, next-value
-		LuaValue table = args.arg(1);
-		int key = args.arg(2).checkInteger() + 1;
+			if (nresults > 0) stack[base] = key;
+			if (nresults > 1) stack[base + 1] = value;
+			for (int i = 2; i < nresults; i++) stack[base + i] = NIL;
+		}
+	}
 
-		if (table instanceof LuaTable tbl && tbl.getMetatable(state) == null) {
-			// Fast path for simple tables.
-			LuaValue v = tbl.rawget(key);
-			return v.isNil() ? NIL : varargsOf(valueOf(key), v);
+	/**
+	 * The iterator function returned by {@code ipairs}.
+	 * <p>
+	 * Like {@link Next}, the interpreter recognises this function in generic for loops, and iterates over tables without
+	 * a metatable directly.
+	 */
+	public static final class INext extends SuspendedVarArgFunction {
+		private INext() {
 		}
 
-		return SuspendedTask.run(di, () -> {
-			LuaValue v = OperationHelper.getTable(state, table, key);
-			return v.isNil() ? NIL : varargsOf(valueOf(key), v);
-		});
+		@Override
+		protected Varargs invoke(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+			// inext( table, [int-index] ) -> next-index, next-value
+			LuaValue table = args.arg(1);
+			int key = args.arg(2).checkInteger() + 1;
+
+			if (table instanceof LuaTable tbl && tbl.getMetatable(state) == null) {
+				// Fast path for simple tables.
+				LuaValue v = tbl.rawget(key);
+				return v.isNil() ? NIL : varargsOf(valueOf(key), v);
+			}
+
+			return SuspendedTask.run(di, () -> {
+				LuaValue v = OperationHelper.getTable(state, table, key);
+				return v.isNil() ? NIL : varargsOf(valueOf(key), v);
+			});
+		}
 	}
 
 	// pcall(f, arg1, ...) -> status, result1, ...
@@ -334,7 +396,7 @@ public class BaseLib {
 			return call.apply(state, SuspendedTask.toFunction(() -> {
 				try {
 					InputReader stream = new FunctionInputReader(state, function);
-					return state.compiler.load(LuaC.compile(stream, chunkName == null ? FUNCTION_STR : chunkName, mode), funcEnv);
+					return LoadState.load(state, LuaC.compile(stream, chunkName == null ? FUNCTION_STR : chunkName, mode), funcEnv);
 				} catch (CompileException e) {
 					return varargsOf(Constants.NIL, valueOf(e.getMessage()));
 				} catch (UncheckedLuaError e) {
@@ -0,0 +1,106 @@
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.JvmCompiler;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+import org.squiddev.cobalt.lib.system.SystemLibraries;
+
+import java.io.ByteArrayInputStream;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs a selection of our test suite with {@linkplain LuaState.Builder#cacheClosures(boolean) closure caching}, and
+ * checks closures are only reused when they are indistinguishable.
+ */
+public class ClosureCacheTest {
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@MethodSource("org.squiddev.cobalt.ScriptHelper#vmComparisonTests")
+	public void compare(String name) throws Exception {
+		ScriptHelper.runComparisonTest(name, x -> x.cacheClosures(true));
+	}
+
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(booleans = {false, true})
+	public void reusesClosures(boolean compile) throws Exception {
+		Consumer<LuaState.Builder> setup = compile ? x -> x.compiler(JvmCompiler::load) : x -> {
+		};
+
+		// Functions with no upvalues are always reused.
+		assertEquals(Constants.TRUE, run(setup, """
+			local function make() return function() return 1 end end
+			return make() == make()
+			"""));
+
+		// Functions which capture an upvalue of the enclosing function are reused within the same closure.
+		assertEquals(Constants.TRUE, run(setup, """
+			local function outer()
+			  local x = 0
+			  return function() return function() x = x + 1 return x end end
+			end
+			local a, b = outer(), outer()
+			return a() == a() and a() ~= b()
+			"""));
+
+		// Functions which capture a local are only reused while it is in scope.
+		assertEquals(ValueFactory.valueOf(3), run(setup, """
+			local fns, seen, count = {}, {}, 0
+			for i = 1, 3 do fns[i] = function() return i end end
+			for i = 1, 3 do
+			  if not seen[fns[i]] then seen[fns[i]] = true count = count + 1 end
+			  assert(fns[i]() == i)
+			end
+			return count
+			"""));
+
+		// Changing the environment creates a new closure.
+		assertEquals(Constants.FALSE, run(setup, """
+			local function make() return function() return 1 end end
+			local a = make()
+			setfenv(make, {})
+			return a == make()
+			"""));
+	}
+
+	@Test
+	public void recreatesCollectedClosures() throws Exception {
+		LuaState state = LuaState.builder().cacheClosures(true).build();
+		LuaInterpretedFunction function = (LuaInterpretedFunction) LoadState.load(state, new ByteArrayInputStream(
+			"return function() return {} end".getBytes(StandardCharsets.UTF_8)
+		), "=test", new LuaTable());
+		LuaValue first = LuaThread.runMain(state, function).first();
+
+		WeakReference<LuaInterpretedFunction> cached = function.p.children[0].cachedClosure;
+		assertNotNull(cached, "Closure is cached");
+		assertSame(first, cached.get());
+		assertSame(first, LuaThread.runMain(state, function).first(), "Cached closure is reused");
+
+		// Simulate the garbage collector reclaiming the closure.
+		cached.clear();
+
+		LuaValue second = LuaThread.runMain(state, function).first();
+		assertNotNull(second);
+		assertNotSame(first, second, "A new closure is created");
+		WeakReference<LuaInterpretedFunction> recached = function.p.children[0].cachedClosure;
+		assertNotNull(recached);
+		assertSame(second, recached.get(), "New closure is cached");
+	}
+
+	private static LuaValue run(Consumer<LuaState.Builder> setup, String code) throws Exception {
+		LuaState.Builder builder = LuaState.builder().cacheClosures(true);
+		setup.accept(builder);
+		LuaState state = builder.build();
+		LuaTable globals = SystemLibraries.standardGlobals(state);
+
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), "=test", globals);
+		return LuaThread.runMain(state, function).first();
+	}
+}
@@ -0,0 +1,78 @@
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.InstructionProfiler;
+import org.squiddev.cobalt.function.JvmCompiler;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+import org.squiddev.cobalt.lib.system.SystemLibraries;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the {@link InstructionProfiler} counts instructions in both interpreted and compiled functions.
+ */
+public class InstructionProfilerTest {
+	private static final String CODE = """
+		local function add(x, y) return x + y end
+		local total = 0
+		for i = 1, 10 do total = add(total, i) end
+		return total
+		""";
+
+	@Test
+	public void countsInstructions() throws Exception {
+		check(LuaState.builder().build());
+	}
+
+	@Test
+	public void countsCompiledInstructions() throws Exception {
+		check(LuaState.builder().compiler(JvmCompiler::load).build());
+	}
+
+	@Test
+	public void stopsCounting() throws Exception {
+		LuaState state = new LuaState();
+		LuaInterpretedFunction function = load(state);
+
+		InstructionProfiler profiler = new InstructionProfiler();
+		state.setProfiler(profiler);
+		LuaThread.runMain(state, function);
+		state.setProfiler(null);
+		LuaThread.runMain(state, function);
+
+		assertEquals(10, profiler.getCounts(function.p.children[0])[0]);
+	}
+
+	private static void check(LuaState state) throws Exception {
+		LuaInterpretedFunction function = load(state);
+
+		InstructionProfiler profiler = new InstructionProfiler();
+		state.setProfiler(profiler);
+		assertEquals(ValueFactory.valueOf(55), LuaThread.runMain(state, function).first());
+
+		// "add" is ADD; RETURN; RETURN, and the final RETURN is never executed.
+		assertArrayEquals(new long[]{10, 10, 0}, profiler.getCounts(function.p.children[0]));
+		assertEquals(10, profiler.getOpcodeCounts()[Lua.OP_ADD]);
+		assertEquals(11, profiler.getOpcodeCounts()[Lua.OP_FORLOOP]);
+
+		StringWriter writer = new StringWriter();
+		profiler.report(new PrintWriter(writer), 20);
+		String report = writer.toString();
+		assertTrue(report.contains("ADD"), "Report contains ADD:\n" + report);
+		assertTrue(report.contains("test:1  ADD"), "Report contains add's line:\n" + report);
+
+		profiler.reset();
+		assertEquals(0, profiler.getOpcodeCounts()[Lua.OP_ADD]);
+	}
+
+	private static LuaInterpretedFunction load(LuaState state) throws Exception {
+		LuaTable globals = SystemLibraries.standardGlobals(state);
+		return (LuaInterpretedFunction) LoadState.load(state, new ByteArrayInputStream(CODE.getBytes(StandardCharsets.UTF_8)), "=test", globals);
+	}
+}
@@ -0,0 +1,96 @@
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.JvmCompiler;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+import org.squiddev.cobalt.function.TieredCompiler;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs a selection of our test suite with the {@link JvmCompiler}, and checks the {@link TieredCompiler} promotes
+ * functions.
+ */
+public class JvmCompilerTest {
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@MethodSource("org.squiddev.cobalt.ScriptHelper#vmComparisonTests")
+	public void compare(String name) throws Exception {
+		ScriptHelper.runComparisonTest(name, x -> x.compiler(JvmCompiler::load));
+	}
+
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"debug", "debug-coroutine-hook", "debug-getinfo", "debug-upvalue", "invalid-tailcall", "no-unwind", "setlist",
+		"traceback",
+	})
+	public void assertion(String name) throws Exception {
+		ScriptHelper helpers = new ScriptHelper("/assert/");
+		helpers.setup(x -> x.compiler(JvmCompiler::load));
+		helpers.runWithDump(name);
+	}
+
+	@Test
+	public void compilesFunctions() throws Exception {
+		LuaState state = LuaState.builder().compiler(JvmCompiler::load).build();
+		LuaTable globals = new LuaTable();
+
+		LuaInterpretedFunction function = (LuaInterpretedFunction) LoadState.load(state, new ByteArrayInputStream((
+			"local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+				"return fib(10)"
+		).getBytes(StandardCharsets.UTF_8)), "=test", globals);
+		assertNotNull(function.p.compiled, "Main function is compiled");
+		assertNotNull(function.p.children[0].compiled, "Child function is compiled");
+
+		assertEquals(ValueFactory.valueOf(55), LuaThread.runMain(state, function).first());
+	}
+
+	@Test
+	public void tieredCompilesHotFunctions() throws Exception {
+		LuaState state = LuaState.builder().tieredCompiler(new TieredCompiler(5, 100, Runnable::run)).build();
+		LuaTable globals = new LuaTable();
+
+		LuaInterpretedFunction function = (LuaInterpretedFunction) LoadState.load(state, new ByteArrayInputStream((
+			"local function add(x, y) return x + y end\n" +
+				"local function cold() end\n" +
+				"local total = 0\n" +
+				"for i = 1, 10 do total = add(total, i) end\n" +
+				"return total"
+		).getBytes(StandardCharsets.UTF_8)), "=test", globals);
+
+		assertEquals(ValueFactory.valueOf(55), LuaThread.runMain(state, function).first());
+		assertNull(function.p.compiled, "Main function is interpreted");
+		assertNotNull(function.p.children[0].compiled, "Hot function is compiled");
+		assertNull(function.p.children[1].compiled, "Cold function is interpreted");
+
+		// Run again, now calling into the compiled function.
+		assertEquals(ValueFactory.valueOf(55), LuaThread.runMain(state, function).first());
+
+		// Functions stop being counted once they have been queued for compilation.
+		assertTrue(function.p.children[0].compileQueued, "Hot function is queued");
+		assertEquals(5, function.p.children[0].callCount);
+		assertFalse(function.p.children[1].compileQueued, "Cold function is not queued");
+	}
+
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"local i = 0 repeat i = i + 1 until i >= 1000 return i",
+		"local i = 0 while true do i = i + 1 if i >= 1000 then break end end return i",
+	})
+	public void tieredCompilesHotLoops(String code) throws Exception {
+		// Disable the call threshold, so the function is only compiled due to its loop.
+		LuaState state = LuaState.builder().tieredCompiler(new TieredCompiler(Integer.MAX_VALUE, 100, Runnable::run)).build();
+		LuaInterpretedFunction function = (LuaInterpretedFunction) LoadState.load(
+			state, new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), "=test", new LuaTable()
+		);
+
+		assertEquals(ValueFactory.valueOf(1000), LuaThread.runMain(state, function).first());
+		assertNotNull(function.p.compiled, "Function with a hot loop is compiled");
+	}
+}
@@ -0,0 +1,50 @@
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.system.SystemLibraries;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks {@link LuaError}s only capture a Java stack trace when {@linkplain LuaState.Builder#javaStackTraces(boolean)
+ * requested}.
+ */
+public class LuaErrorTest {
+	@Test
+	public void stacklessByDefault() throws Exception {
+		assertEquals(0, new LuaError("oh no").getStackTrace().length);
+		assertEquals(0, run(LuaState.builder().build()).getStackTrace().length);
+	}
+
+	@Test
+	public void capturesStackTraces() throws Exception {
+		LuaError error = run(LuaState.builder().javaStackTraces(true).build());
+		assertTrue(error.getStackTrace().length > 0, "Error has a stack trace");
+
+		// Errors created outside the state are unaffected.
+		assertEquals(0, new LuaError("oh no").getStackTrace().length);
+	}
+
+	@Test
+	public void keepsCause() {
+		RuntimeException cause = new RuntimeException("oh no");
+		LuaError error = new LuaError(cause);
+		assertSame(cause, error.getCause());
+		assertTrue(error.getCause().getStackTrace().length > 0, "Cause has a stack trace");
+	}
+
+	private static LuaError run(LuaState state) throws Exception {
+		LuaTable globals = SystemLibraries.standardGlobals(state);
+		byte[] code = "error('oh no')".getBytes(StandardCharsets.UTF_8);
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(code), "=test", globals);
+
+		LuaError error = assertThrows(LuaError.class, () -> LuaThread.runMain(state, function));
+		assertEquals("test:1: oh no", error.getValue().toString());
+		return error;
+	}
+}
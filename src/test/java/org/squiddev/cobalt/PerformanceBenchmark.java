@@ -49,11 +49,21 @@ public class PerformanceBenchmark {
 		}
 	}
 
+	@Benchmark
+	public void arrayread(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("arrayread"), valueOf(200));
+	}
+
 	@Benchmark
 	public void binarytrees(ScriptScope scope) throws Exception {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("binarytrees"), valueOf(10));
 	}
 
+	@Benchmark
+	public void closures(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("closures"), valueOf(100000));
+	}
+
 	@Benchmark
 	public void fannkuch(ScriptScope scope) throws Exception {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("fannkuch"), valueOf(8));
@@ -69,6 +79,11 @@ public class PerformanceBenchmark {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("nsieve"), valueOf(8));
 	}
 
+	@Benchmark
+	public void straightline(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("straightline"), valueOf(100000));
+	}
+
 	public static void main(String... args) throws RunnerException {
 		Options opts = new OptionsBuilder()
 			.include("org.squiddev.cobalt.PerformanceBenchmark.*")
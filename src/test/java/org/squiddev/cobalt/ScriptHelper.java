@@ -37,6 +37,7 @@ import java.io.*;
 import java.time.ZoneOffset;
 import java.util.TimeZone;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -124,6 +125,33 @@ public class ScriptHelper {
 		}
 	}
 
+	/**
+	 * A selection of our comparison tests which exercise the VM, used to check alternative ways of executing code
+	 * behave the same as the interpreter.
+	 *
+	 * @return The names of the comparison tests.
+	 * @see #runComparisonTest(String, Consumer)
+	 */
+	public static Stream<String> vmComparisonTests() {
+		return Stream.of(
+			"baselib", "coroutinelib", "debuglib", "errors", "functions", "manyupvals", "metatags", "tailcalls", "traceback",
+			"upvalues", "vm"
+		);
+	}
+
+	/**
+	 * Runs a comparison test with a custom {@link LuaState}.
+	 *
+	 * @param testName The name of the test file to run
+	 * @param extend   Configure the state to run the test with.
+	 * @see #vmComparisonTests()
+	 */
+	public static void runComparisonTest(String testName, Consumer<LuaState.Builder> extend) throws Exception {
+		ScriptHelper helpers = new ScriptHelper("/compare/");
+		helpers.setup(extend);
+		helpers.runComparisonTest(testName);
+	}
+
 	/**
 	 * Loads a script into the global table
 	 *
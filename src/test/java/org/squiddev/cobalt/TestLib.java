@@ -13,10 +13,15 @@ public final class TestLib {
 	public static void add(LuaTable env) {
 		var t = RegisteredFunction.bind(new RegisteredFunction[]{
 			RegisteredFunction.ofV("querytab", TestLib::tableQuery),
+			RegisteredFunction.of("pack6", TestLib::pack6),
 		});
 		env.rawset("T", t);
 	}
 
+	private static LuaValue pack6(LuaState state, LuaValue arg1, LuaValue arg2, LuaValue arg3, LuaValue arg4, LuaValue arg5, LuaValue arg6) {
+		return ValueFactory.listOf(arg1, arg2, arg3, arg4, arg5, arg6);
+	}
+
 	private static Varargs tableQuery(LuaState state, Varargs args) throws LuaError {
 		LuaTable table = args.arg(1).checkTable();
 		int i = args.arg(2).optInteger(-1);
@@ -0,0 +1,137 @@
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.function.LocalVariable;
+import org.squiddev.cobalt.function.LuaFunction;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.Lua.*;
+
+/**
+ * Runs a selection of our test suite with the {@link BytecodeOptimizer}, and checks individual optimisations.
+ */
+public class BytecodeOptimizerTest {
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@MethodSource("org.squiddev.cobalt.ScriptHelper#vmComparisonTests")
+	public void compare(String name) throws Exception {
+		ScriptHelper.runComparisonTest(name, x -> x.optimizeBytecode(true));
+	}
+
+	@Test
+	public void removesUnreachableCode() throws Exception {
+		Prototype original = compile("""
+			local function f(x)
+			  if x then return 1 else return 2 end
+			end
+			return f(true), f(false)
+			""");
+		Prototype optimized = BytecodeOptimizer.optimize(original);
+
+		// The jump over the else branch is unreachable.
+		assertEquals(original.children[0].code.length - 1, optimized.children[0].code.length);
+		checkDebugInfo(optimized);
+
+		Varargs result = run(optimized);
+		assertEquals(ValueFactory.valueOf(1), result.arg(1));
+		assertEquals(ValueFactory.valueOf(2), result.arg(2));
+	}
+
+	@Test
+	public void threadsJumps() throws Exception {
+		// Our compiler already avoids jumps to jumps, so construct a function containing them by hand. This is
+		// equivalent to "local x = ... if x then x = 1 else x = 2 end return x".
+		int[] code = {
+			LuaC.CREATE_ABC(OP_VARARG, 0, 2, 0),
+			LuaC.CREATE_ABC(OP_TEST, 0, 0, 0),
+			LuaC.CREATE_ABx(OP_JMP, 0, 3 + MAXARG_sBx), // if not x then goto 6
+			LuaC.CREATE_ABx(OP_LOADK, 0, 0),
+			LuaC.CREATE_ABx(OP_JMP, 0, 2 + MAXARG_sBx), // goto 7
+			LuaC.CREATE_ABC(OP_RETURN, 0, 2, 0),
+			LuaC.CREATE_ABx(OP_LOADK, 0, 1),
+			LuaC.CREATE_ABx(OP_JMP, 0, -3 + MAXARG_sBx), // goto 5
+			LuaC.CREATE_ABC(OP_RETURN, 0, 1, 0),
+		};
+		int[] lines = new int[code.length];
+		Arrays.fill(lines, 1);
+
+		Prototype original = new Prototype(
+			ValueFactory.valueOf("=test"), new LuaValue[]{ ValueFactory.valueOf(1), ValueFactory.valueOf(2) }, code,
+			new Prototype[0], 0, VARARG_ISVARARG, 2, 0, 0, 0, lines, lines, new LocalVariable[0], new LuaString[0]
+		);
+		assertTrue(jumpsToJump(original.code), "Original code has a jump to a jump");
+
+		Prototype optimized = BytecodeOptimizer.optimize(original);
+		assertFalse(jumpsToJump(optimized.code), "Optimised code has no jumps to jumps");
+		checkDebugInfo(optimized);
+
+		assertEquals(ValueFactory.valueOf(1), run(optimized, Constants.TRUE).first());
+		assertEquals(ValueFactory.valueOf(2), run(optimized, Constants.FALSE).first());
+	}
+
+	@Test
+	public void foldsConstants() throws Exception {
+		// A binary chunk from another compiler may load constants into registers rather than using them directly.
+		Prototype original = compile("local x = ... return x + 1");
+		int pc = 0;
+		while (GET_OPCODE(original.code[pc]) != OP_ADD) pc++;
+
+		// Rewrite "ADD 1 0 K" to "LOADK 1 K; ADD 1 0 1".
+		int[] code = original.code.clone();
+		code[pc] = LuaC.CREATE_ABC(OP_ADD, 1, 0, 1);
+		code = insert(code, pc, LuaC.CREATE_ABx(OP_LOADK, 1, INDEXK(GETARG_C(original.code[pc]))));
+
+		Prototype loaded = new Prototype(
+			original.source, original.constants, code, original.children, original.parameters, original.isVarArg,
+			original.maxStackSize, original.upvalues, original.lineDefined, original.lastLineDefined,
+			insert(original.lineInfo, pc, original.lineInfo[pc]), insert(original.columnInfo, pc, original.columnInfo[pc]),
+			original.locals, original.upvalueNames
+		);
+		Prototype optimized = BytecodeOptimizer.optimize(loaded);
+
+		assertArrayEquals(original.code, optimized.code);
+		checkDebugInfo(optimized);
+
+		assertEquals(ValueFactory.valueOf(3), run(optimized, ValueFactory.valueOf(2)).first());
+	}
+
+	private static boolean jumpsToJump(int[] code) {
+		for (int pc = 0; pc < code.length; pc++) {
+			if (GET_OPCODE(code[pc]) == OP_JMP && GET_OPCODE(code[pc + 1 + GETARG_sBx(code[pc])]) == OP_JMP) return true;
+		}
+		return false;
+	}
+
+	private static void checkDebugInfo(Prototype prototype) {
+		assertEquals(prototype.code.length, prototype.lineInfo.length, "Line info matches code");
+		assertEquals(prototype.code.length, prototype.columnInfo.length, "Column info matches code");
+		for (LocalVariable local : prototype.locals) {
+			assertTrue(local.startpc <= local.endpc && local.endpc <= prototype.code.length, "Local " + local + " is in range");
+		}
+		for (Prototype child : prototype.children) checkDebugInfo(child);
+	}
+
+	private static int[] insert(int[] array, int index, int value) {
+		int[] result = new int[array.length + 1];
+		System.arraycopy(array, 0, result, 0, index);
+		result[index] = value;
+		System.arraycopy(array, index, result, index + 1, array.length - index);
+		return result;
+	}
+
+	private static Prototype compile(String code) throws CompileException {
+		return LuaC.compile(new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), "=test");
+	}
+
+	private static Varargs run(Prototype prototype, LuaValue... args) throws LuaError {
+		LuaState state = new LuaState();
+		LuaFunction function = LoadState.interpretedFunction(prototype, new LuaTable());
+		return LuaThread.runMain(state, function, ValueFactory.varargsOf(args));
+	}
+}
@@ -80,6 +80,46 @@ public class TableArrayTest {
 		assertThat(getHashLength(t), lessThanOrEqualTo(3));
 	}
 
+	@Test
+	public void testNumberArray() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 32; ++i) t.rawset(i, ValueFactory.valueOf(i * 0.5));
+		t.rawset(3, LuaDouble.NAN);
+		t.rawset(5, Constants.NIL);
+
+		assertTrue(hasNumberArray(t), "Array part is numeric");
+		assertEquals(32, getArrayLength(t));
+		assertTrue(Double.isNaN(t.rawget(3).toDouble()));
+		assertEquals(Constants.NIL, t.rawget(5));
+		assertEquals(LuaInteger.valueOf(2), t.rawget(4));
+		assertEquals(ValueFactory.valueOf(15.5), t.rawget(31));
+
+		// Storing a non-number converts the array part back, preserving existing values.
+		t.rawset(7, LuaString.valueOf("Test Value!"));
+		assertFalse(hasNumberArray(t), "Array part is not numeric");
+		assertEquals(32, getArrayLength(t));
+		assertEquals("Test Value!", t.rawget(7).toString());
+		assertTrue(Double.isNaN(t.rawget(3).toDouble()));
+		assertEquals(Constants.NIL, t.rawget(5));
+		for (int i = 8; i <= 32; ++i) assertEquals(ValueFactory.valueOf(i * 0.5), t.rawget(i));
+	}
+
+	@Test
+	public void testNumberArrayRead() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 32; ++i) t.rawset(i, ValueFactory.valueOf(i * 0.5));
+		assertTrue(hasNumberArray(t), "Array part is numeric");
+
+		// Each read boxes the number again, so frequently read arrays are converted back.
+		for (int i = 1; i < 32; ++i) assertEquals(ValueFactory.valueOf(i * 0.5), t.rawget(i));
+		assertTrue(hasNumberArray(t), "Array part is numeric");
+
+		assertEquals(ValueFactory.valueOf(16), t.rawget(32));
+		assertFalse(hasNumberArray(t), "Array part is not numeric");
+		assertEquals(32, getArrayLength(t));
+		for (int i = 1; i <= 32; ++i) assertEquals(ValueFactory.valueOf(i * 0.5), t.rawget(i));
+	}
+
 	@Test
 	public void testOutOfOrderIntegerKeyInsertion() {
 		LuaTable t = new LuaTable();
@@ -248,6 +288,27 @@ public class TableArrayTest {
 		}
 	}
 
+	@Test
+	public void testAppendLength() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 100; ++i) {
+			t.rawset(t.length() + 1, LuaInteger.valueOf(i));
+			assertEquals(i, t.length());
+		}
+
+		for (int i = 100; i > 50; --i) {
+			t.rawset(t.length(), Constants.NIL);
+			assertEquals(i - 1, t.length());
+		}
+
+		// Creating a hole means we no longer know the border, but must still find one.
+		t.rawset(10, Constants.NIL);
+		t.rawset(20, Constants.NIL);
+		int length = t.length();
+		assertFalse(t.rawget(length).isNil());
+		assertTrue(t.rawget(length + 1).isNil());
+	}
+
 	@Test
 	public void testMixedKeyslen() {
 		LuaTable t = new LuaTable();
@@ -29,9 +29,12 @@ import org.junit.jupiter.api.Test;
 import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.function.TwoArgFunction;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
 import static org.squiddev.cobalt.table.TableOperations.getHashLength;
+import static org.squiddev.cobalt.table.TableOperations.sharesKeys;
 
 /**
  * Tests for tables used as lists.
@@ -214,6 +217,102 @@ public class TableHashTest {
 		assertEquals("nil", OperationHelper.getTable(state, t, ValueFactory.valueOf(456)).toString());
 	}
 
+	@Test
+	public void testShapes() throws LuaError {
+		String[] keys = {"x", "y", "id", "name", "vx", "vy"};
+		LuaTable a = new LuaTable(), b = new LuaTable();
+		for (int i = 0; i < keys.length; i++) {
+			a.rawset(keys[i], ValueFactory.valueOf(i));
+			b.rawset(keys[i], ValueFactory.valueOf(i + 10));
+		}
+
+		assertTrue(sharesKeys(a, b), "Tables with the same keys share a shape");
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(ValueFactory.valueOf(i), a.rawget(keys[i]));
+			assertEquals(ValueFactory.valueOf(i + 10), b.rawget(keys[i]));
+		}
+		assertEquals(TableOperations.keys(a), TableOperations.keys(b));
+
+		// Removing a key gives the table its own hash part.
+		b.rawset("y", Constants.NIL);
+		assertFalse(sharesKeys(a, b), "Tables with different keys do not share a shape");
+		assertEquals(ValueFactory.valueOf(1), a.rawget("y"));
+		assertEquals(Constants.NIL, b.rawget("y"));
+		assertEquals(ValueFactory.valueOf(12), b.rawget("id"));
+
+		// As do non-string keys.
+		LuaTable c = new LuaTable();
+		for (String key : keys) c.rawset(key, Constants.TRUE);
+		c.rawset(Constants.TRUE, Constants.TRUE);
+		assertFalse(sharesKeys(a, c), "Tables with different keys do not share a shape");
+		for (String key : keys) assertEquals(Constants.TRUE, c.rawget(key));
+	}
+
+	@Test
+	public void testShapesReclaimed() throws LuaError {
+		// Create more shapes than we allow to be alive at once, keeping them alive. Each shape has at most 15 children,
+		// so there is always room for one more transition.
+		List<LuaTable> tables = new ArrayList<>();
+		for (int i = 0; i < 15 * 15 * 15 * 15; i++) {
+			LuaTable t = new LuaTable();
+			for (int digit = 0, n = i; digit < 4; digit++, n /= 15) t.rawset("d" + digit + "_" + (n % 15), Constants.TRUE);
+			tables.add(t);
+		}
+
+		assertEquals(1 << 14, TableOperations.liveShapes(), "Number of live shapes is capped");
+		assertFalse(sharesFreshShape(), "Tables do not share new shapes once the cap is reached");
+
+		// Once those shapes have been collected, new tables can share shapes again.
+		TableOperations.collectShapes();
+		assertTrue(sharesFreshShape(), "Tables share new shapes once old shapes are collected");
+		assertTrue(TableOperations.liveShapes() < 1 << 14, "Collected shapes are no longer counted");
+
+		tables.clear();
+	}
+
+	private static boolean sharesFreshShape() throws LuaError {
+		LuaTable a = new LuaTable(), b = new LuaTable();
+		for (LuaTable t : List.of(a, b)) {
+			t.rawset("d0_0", Constants.TRUE);
+			t.rawset("d1_0", Constants.TRUE);
+			t.rawset("d2_0", Constants.TRUE);
+			t.rawset("fresh", Constants.TRUE);
+		}
+		return sharesKeys(a, b);
+	}
+
+	@Test
+	public void testWeakEntriesReclaimed() throws LuaError {
+		LuaTable t = new LuaTable(64, 256);
+		t.setMetatable(state, ValueFactory.tableOf(Constants.MODE, ValueFactory.valueOf("v")));
+
+		LuaTable kept = new LuaTable();
+		t.rawset(1, kept);
+		List<LuaTable> collected = new ArrayList<>();
+		for (int i = 2; i <= 50; i++) {
+			LuaTable value = new LuaTable();
+			collected.add(value);
+			t.rawset(i, value);
+		}
+		for (int i = 0; i < 100; i++) {
+			LuaTable value = new LuaTable();
+			collected.add(value);
+			t.rawset("key" + i, value);
+		}
+
+		for (LuaTable value : collected) assertEquals(1, TableOperations.collect(t, value));
+		assertEquals(0, t.getReclaimedEntries(), "Entries are only removed when the table is modified");
+
+		// Adding a key removes any entries which have been collected.
+		t.rawset("other", Constants.TRUE);
+
+		assertEquals(149, t.getReclaimedEntries());
+		assertSame(kept, t.rawget(1));
+		for (int i = 2; i <= 50; i++) assertEquals(Constants.NIL, t.rawget(i));
+		for (int i = 0; i < 100; i++) assertEquals(Constants.NIL, t.rawget("key" + i));
+		assertEquals(Constants.TRUE, t.rawget("other"));
+	}
+
 	@Test
 	public void testNext() throws LuaError, UnwindThrowable {
 		final LuaTable t = new LuaTable();
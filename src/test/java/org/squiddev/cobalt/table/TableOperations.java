@@ -5,11 +5,14 @@ import org.squiddev.cobalt.LuaTable;
 import org.squiddev.cobalt.LuaValue;
 import org.squiddev.cobalt.Varargs;
 
+import java.lang.ref.Reference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.squiddev.cobalt.Constants.NIL;
 
@@ -17,26 +20,36 @@ import static org.squiddev.cobalt.Constants.NIL;
  * Nasty utility functions for writing table tests.
  */
 public final class TableOperations {
-	private static final Field nodes;
+	private static final Field keys;
+	private static final Field values;
 	private static final Field array;
+	private static final Field numbers;
 	private static final Field lastFree;
 
 	static {
-		Field nodesField, arrayField, lastFreeField;
+		Field keysField, valuesField, arrayField, numbersField, lastFreeField;
 		try {
-			nodesField = LuaTable.class.getDeclaredField("nodes");
-			nodesField.setAccessible(true);
+			keysField = LuaTable.class.getDeclaredField("keys");
+			keysField.setAccessible(true);
+
+			valuesField = LuaTable.class.getDeclaredField("values");
+			valuesField.setAccessible(true);
 
 			arrayField = LuaTable.class.getDeclaredField("array");
 			arrayField.setAccessible(true);
 
+			numbersField = LuaTable.class.getDeclaredField("numbers");
+			numbersField.setAccessible(true);
+
 			lastFreeField = LuaTable.class.getDeclaredField("lastFree");
 			lastFreeField.setAccessible(true);
 		} catch (ReflectiveOperationException e) {
 			throw new RuntimeException(e);
 		}
-		nodes = nodesField;
+		keys = keysField;
+		values = valuesField;
 		array = arrayField;
+		numbers = numbersField;
 		lastFree = lastFreeField;
 	}
 
@@ -72,7 +85,7 @@ public final class TableOperations {
 	 */
 	public static int getHashLength(LuaTable table) {
 		try {
-			return Array.getLength(nodes.get(table));
+			return Array.getLength(keys.get(table));
 		} catch (IllegalAccessException e) {
 			throw new RuntimeException(e);
 		}
@@ -86,7 +99,37 @@ public final class TableOperations {
 	 */
 	public static int getArrayLength(LuaTable table) {
 		try {
-			return Array.getLength(array.get(table));
+			Object numberArray = numbers.get(table);
+			return Array.getLength(numberArray != null ? numberArray : array.get(table));
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Determine whether two tables share the keys of their hash part.
+	 *
+	 * @param a The first table.
+	 * @param b The second table.
+	 * @return Whether both tables have the same shape.
+	 */
+	public static boolean sharesKeys(LuaTable a, LuaTable b) {
+		try {
+			return keys.get(a) == keys.get(b);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Determine whether the array part of the table is stored as a {@code double[]}.
+	 *
+	 * @param table The current table.
+	 * @return Whether the array part only contains numbers.
+	 */
+	public static boolean hasNumberArray(LuaTable table) {
+		try {
+			return numbers.get(table) != null;
 		} catch (IllegalAccessException e) {
 			throw new RuntimeException(e);
 		}
@@ -105,4 +148,69 @@ public final class TableOperations {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Simulate the garbage collector collecting a value which is held weakly by a table. This clears and enqueues
+	 * the reference to it, as the garbage collector would.
+	 *
+	 * @param table The table holding the value.
+	 * @param value The value to collect.
+	 * @return The number of references which were enqueued.
+	 */
+	public static int collect(LuaTable table, Object value) {
+		try {
+			return collect((Object[]) array.get(table), value) + collect((Object[]) values.get(table), value);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int collect(Object[] entries, Object value) {
+		int count = 0;
+		for (Object entry : entries) {
+			if (entry instanceof Reference<?> reference && reference.get() == value && reference.enqueue()) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Simulate the garbage collector collecting every table shape, clearing and enqueuing the references to them.
+	 */
+	public static void collectShapes() {
+		try {
+			Class<?> shape = Class.forName(LuaTable.class.getName() + "$Shape");
+			Field roots = shape.getDeclaredField("roots");
+			roots.setAccessible(true);
+			Field transitions = shape.getDeclaredField("transitions");
+			transitions.setAccessible(true);
+
+			for (Object root : (Object[]) roots.get(null)) collectShapes(root, transitions);
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void collectShapes(Object shape, Field transitions) throws IllegalAccessException {
+		for (Object transition : ((Map<?, ?>) transitions.get(shape)).values()) {
+			Reference<?> reference = (Reference<?>) transition;
+			Object child = reference.get();
+			if (child != null) collectShapes(child, transitions);
+			reference.enqueue();
+		}
+	}
+
+	/**
+	 * Get the number of table shapes which are currently alive.
+	 *
+	 * @return The number of live shapes.
+	 */
+	public static int liveShapes() {
+		try {
+			Field shapes = Class.forName(LuaTable.class.getName() + "$Shape").getDeclaredField("shapes");
+			shapes.setAccessible(true);
+			return ((AtomicInteger) shapes.get(null)).get();
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
 }
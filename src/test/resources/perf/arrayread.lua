@@ -0,0 +1,21 @@
+-- Fills arrays with non-integer and large integer numbers once, and then repeatedly reads them back. This is dominated
+-- by the cost of reading from a table's array part.
+
+local n = tonumber((...)) or 200
+
+local size = 10000
+local doubles, integers = {}, {}
+for i = 1, size do
+	doubles[i] = i + 0.5
+	integers[i] = i * 1000
+end
+
+local total = 0
+for _ = 1, n do
+	for i = 1, size do
+		total = total + doubles[i] + integers[i]
+	end
+	for _, v in ipairs(doubles) do total = total - v end
+end
+
+print(total)
@@ -0,0 +1,31 @@
+-- Creates many short-lived closures, and reads and writes their upvalues. This is dominated by the cost of creating
+-- and closing upvalues, and of accessing them.
+
+local n = tonumber((...)) or 100000
+
+local function counter(start)
+	local count = start
+	return function(step)
+		count = count + step
+		return count
+	end
+end
+
+local function compose(f, g)
+	return function(x) return f(g(x)) end
+end
+
+local total = 0
+for i = 1, n do
+	local inc = counter(i)
+	inc(1)
+	local both = compose(inc, inc)
+	total = total + both(2) % 7
+
+	local acc = 0
+	local function add(x) acc = acc + x end
+	for j = 1, 4 do add(j) end
+	total = total + acc
+end
+
+print(total)
@@ -0,0 +1,17 @@
+-- Mostly straight-line arithmetic and table accesses, with a single loop. This is dominated by the per-instruction cost
+-- of the interpreter, rather than by calls or allocation.
+
+local n = tonumber((...)) or 100000
+
+local t = { 0, 0, 0, 0 }
+local a, b, c, d = 1, 2, 3, 4
+for _ = 1, n do
+	a = b + c; b = c * d; c = d - a; d = a % 7
+	t[1] = a; t[2] = b; t[3] = c; t[4] = d
+	a = t[4] + t[3]; b = t[2] - t[1]; c = a * 2; d = b * 3
+	a, b, c, d = d % 5, c % 7, b % 11, a % 13
+	t[1] = a + b; t[2] = b + c; t[3] = c + d; t[4] = d + a
+	a = t[1] - t[2]; b = t[2] - t[3]; c = t[3] - t[4]; d = t[4] - t[1]
+end
+
+print(a, b, c, d)
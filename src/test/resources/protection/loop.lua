@@ -10,3 +10,26 @@ end
 check(function()
 	while true do end
 end)
+
+check(function()
+	repeat until false
+end)
+
+check(function()
+	local x = 0
+	while x >= 0 do x = x + 1 end
+end)
+
+check(function()
+	for i = 1, math.huge do end
+end)
+
+check(function()
+	local t = { 1 }
+	while true do for _ in pairs(t) do end end
+end)
+
+check(function()
+	local function f() return f() end
+	return f()
+end)
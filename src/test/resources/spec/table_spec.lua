@@ -231,6 +231,86 @@ describe("Lua tables", function()
 		end)
 	end)
 
+	describe("iterating with pairs", function()
+		local function collect(t)
+			local out = {}
+			for k, v in pairs(t) do out[k] = v end
+			return out
+		end
+
+		it("visits the array and hash parts", function()
+			local t = { 1, 2, 3, x = "x", y = "y", [10] = 10 }
+			expect(collect(t)):same(t)
+		end)
+
+		it("allows clearing fields", function()
+			local t = { 1, 2, 3, x = "x", y = "y", z = "z" }
+			local seen = 0
+			for k in pairs(t) do
+				t[k] = nil
+				seen = seen + 1
+			end
+
+			expect(seen):eq(6)
+			expect(next(t)):eq(nil)
+		end)
+
+		it("supports nested loops over the same table", function()
+			local t = { a = 1, b = 2, c = 3 }
+			local count = 0
+			for _ in pairs(t) do
+				for _ in pairs(t) do count = count + 1 end
+			end
+			expect(count):eq(9)
+		end)
+
+		it("pads extra variables with nil", function()
+			for k, v, extra in pairs({ 1 }) do
+				expect(k):eq(1)
+				expect(v):eq(1)
+				expect(extra):eq(nil)
+			end
+		end)
+
+		it("errors on invalid keys", function()
+			expect.error(function()
+				for k in next, { a = 1 }, "b" do end
+			end):str_match("invalid key to 'next'")
+		end)
+
+		it("calls next directly", function()
+			local k, v, x = next({ 10 })
+			expect(k):eq(1)
+			expect(v):eq(10)
+			expect(x):eq(nil)
+
+			k, v = next({ a = true }, nil)
+			expect(k):eq("a")
+			expect(v):eq(true)
+
+			k, v = next({ 10 }, 1)
+			expect(k):eq(nil)
+			expect(v):eq(nil)
+
+			expect.error(function() local k, v = next({}, "x") end):str_match("invalid key to 'next'")
+		end)
+	end)
+
+	describe("iterating with ipairs", function()
+		it("stops at the first nil", function()
+			local out = {}
+			for i, v in ipairs({ 1, 2, nil, 4 }) do out[i] = v end
+			expect(out):same { 1, 2 }
+		end)
+
+		it("uses __index", function()
+			local t = setmetatable({}, { __index = function(_, k) if k <= 3 then return k * 2 end end })
+			local out = {}
+			for i, v in ipairs(t) do out[i] = v end
+			expect(out):same { 2, 4, 6 }
+		end)
+	end)
+
 	describe("rawlen :lua>=5.2", function()
 		it("behaves identically to PUC Lua on sparse tables", function()
 			expect(rawlen({[1]="e",[2]="a",[3]="b",[4]="c"})):eq(4)
@@ -13,4 +13,380 @@ describe("The Lua VM", function()
 			expect.error(string.match, a):str_match("string expected, got type a")
 		end)
 	end)
+
+	describe("field access", function()
+		local function get_x(t) return t.x end
+		local function set_x(t, v) t.x = v end
+
+		it("reads fields from differently shaped tables", function()
+			local tables = { { x = 1 }, { a = 1, b = 2, x = 2 }, { x = 3, y = 4, z = 5 }, {} }
+			for _ = 1, 3 do
+				expect(get_x(tables[1])):eq(1)
+				expect(get_x(tables[2])):eq(2)
+				expect(get_x(tables[3])):eq(3)
+				expect(get_x(tables[4])):eq(nil)
+			end
+		end)
+
+		it("reads fields after the table is resized", function()
+			local t = { x = 1 }
+			expect(get_x(t)):eq(1)
+			for i = 1, 100 do t["key" .. i] = i end
+			expect(get_x(t)):eq(1)
+			t.x = nil
+			expect(get_x(t)):eq(nil)
+		end)
+
+		it("observes changes to __index", function()
+			local parent = { x = "parent" }
+			local child = setmetatable({}, { __index = parent })
+			expect(get_x(child)):eq("parent")
+
+			parent.x = "changed"
+			expect(get_x(child)):eq("changed")
+
+			getmetatable(child).__index = { x = "other" }
+			expect(get_x(child)):eq("other")
+
+			child.x = "own"
+			expect(get_x(child)):eq("own")
+		end)
+
+		it("calls __newindex for removed fields", function()
+			local calls = 0
+			local t = setmetatable({ x = 1 }, { __newindex = function(t, k, v) calls = calls + 1 end })
+			set_x(t, 2)
+			expect(t.x):eq(2)
+			expect(calls):eq(0)
+
+			rawset(t, "x", nil)
+			set_x(t, 3)
+			expect(rawget(t, "x")):eq(nil)
+			expect(calls):eq(1)
+		end)
+	end)
+
+	describe("global variables", function()
+		local function get_global() return some_global end
+		local function set_global(v) some_global = v end
+
+		it("observes changes to the environment", function()
+			local env = {}
+			setfenv(get_global, env)
+			setfenv(set_global, env)
+
+			expect(get_global()):eq(nil)
+			set_global(1)
+			expect(get_global()):eq(1)
+			expect(env.some_global):eq(1)
+
+			rawset(env, "some_global", 2)
+			expect(get_global()):eq(2)
+
+			-- Force the table to be resized.
+			for i = 1, 100 do env["key" .. i] = i end
+			expect(get_global()):eq(2)
+
+			env.some_global = nil
+			expect(get_global()):eq(nil)
+		end)
+
+		it("observes setfenv", function()
+			local a, b = { some_global = "a" }, { some_global = "b" }
+			for _ = 1, 3 do
+				setfenv(get_global, a)
+				expect(get_global()):eq("a")
+				setfenv(get_global, b)
+				expect(get_global()):eq("b")
+			end
+		end)
+
+		it("uses __index and __newindex for missing globals", function()
+			local writes = {}
+			local env = setmetatable({}, {
+				__index = function(_, k) return "default " .. k end,
+				__newindex = function(t, k, v) writes[#writes + 1] = v; rawset(t, k, v) end,
+			})
+			setfenv(get_global, env)
+			setfenv(set_global, env)
+
+			expect(get_global()):eq("default some_global")
+			set_global(1)
+			expect(get_global()):eq(1)
+			set_global(2)
+			expect(writes):same { 1 }
+
+			rawset(env, "some_global", nil)
+			expect(get_global()):eq("default some_global")
+			set_global(3)
+			expect(writes):same { 1, 3 }
+		end)
+	end)
+
+	describe("arithmetic", function()
+		local function poly(x, y) return (x * x + y * y) / 2 - x % 3 ^ 2 end
+
+		it("evaluates chains of operations", function()
+			expect(poly(3, 4)):eq(9.5)
+			expect(poly(-1.5, 0.5)):eq(-6.25)
+			expect(poly("3", 4)):eq(9.5)
+			expect(-(poly(0, 0))):eq(0)
+		end)
+
+		it("uses metamethods part way through a chain", function()
+			local function v(x) return type(x) == "table" and x.v or x end
+			local mt = {}
+			mt.__mul = function(a, b) return setmetatable({ v = v(a) * v(b) }, mt) end
+			mt.__add = function(a, b) return v(a) + v(b) end
+			mt.__mod = function(a, b) return v(a) % v(b) end
+
+			local x = setmetatable({ v = 3 }, mt)
+			expect(poly(x, 4)):eq(9.5)
+			expect(poly(4, x)):eq(8.5)
+		end)
+
+		it("overflows integers to floating point", function()
+			local max, min = 2147483647, -2147483648
+			local function add(a, b) return a + b end
+			local function sub(a, b) return a - b end
+			local function mul(a, b) return a * b end
+
+			expect(add(max, 1)):eq(2147483648)
+			expect(add(min, -1)):eq(-2147483649)
+			expect(add(max, max)):eq(4294967294)
+			expect(sub(min, 1)):eq(-2147483649)
+			expect(sub(0, min)):eq(2147483648)
+			expect(sub(max, min)):eq(4294967295)
+			expect(mul(max, max)):eq(4611686014132420609)
+			expect(mul(min, min)):eq(4611686018427387904)
+			expect(mul(65536, 65536)):eq(4294967296)
+
+			-- Results which do not fit in a double are rounded, as with floating point arithmetic.
+			expect(mul(max, max) == 4611686014132420609.0):eq(true)
+
+			-- The results may be used as integers again.
+			expect(add(add(max, 1), -1)):eq(max)
+			expect(add(sub(min, 1), 1)):eq(min)
+			expect(string.format("%d", add(max, 1) - 1)):eq("2147483647")
+		end)
+
+		it("writes back results before line hooks", function()
+			local function f(a, b)
+				local x = a * b + 1
+				local y = x * 2
+				return y
+			end
+
+			local seen
+			debug.sethook(function()
+				local name, value = debug.getlocal(2, 3)
+				if name == "x" then seen = value end
+			end, "l")
+			local result = f(2, 3)
+			debug.sethook()
+
+			expect(result):eq(14)
+			expect(seen):eq(7)
+		end)
+	end)
+
+	describe("numeric for loops", function()
+		local function collect(init, limit, step)
+			local out = {}
+			for i = init, limit, step do
+				out[#out + 1] = i
+				if #out > 10 then break end
+			end
+			return out
+		end
+
+		it("iterates over integers", function()
+			expect(collect(1, 3, 1)):same { 1, 2, 3 }
+			expect(collect(3, 1, -1)):same { 3, 2, 1 }
+			expect(collect(1, 0, 1)):same {}
+			expect(collect(300, 1000, 300)):same { 300, 600, 900 }
+		end)
+
+		it("iterates over non-integers", function()
+			expect(collect(1, 2, 0.5)):same { 1, 1.5, 2 }
+			expect(collect(0.5, 2, 1)):same { 0.5, 1.5 }
+			expect(collect(1, 2.5, 1)):same { 1, 2 }
+			expect(collect("1", "3", "1")):same { 1, 2, 3 }
+		end)
+
+		it("handles values near the integer limits", function()
+			expect(collect(2147483646, 2147483647, 1)):same { 2147483646, 2147483647 }
+			expect(collect(2147483647, 2147483648, 1)):same { 2147483647, 2147483648 }
+			expect(collect(-2147483647, -2147483648, -1)):same { -2147483647, -2147483648 }
+			expect(collect(-2147483648, -2147483647, 1)):same { -2147483648, -2147483647 }
+			expect(collect(2147483647, 0, -2147483647)):same { 2147483647, 0 }
+			expect(collect(0, 2147483647, 2147483647)):same { 0, 2147483647 }
+		end)
+	end)
+
+	describe("debug hooks", function()
+		it("runs line hooks from the next instruction", function()
+			local lines = {}
+			local function f()
+				debug.sethook(function(_, line) lines[#lines + 1] = line end, "l")
+				local x = 1
+				local y = 2
+				debug.sethook()
+			end
+
+			local start = debug.getinfo(f, "S").linedefined
+			f()
+			expect(lines):same { start + 2, start + 3, start + 4 }
+		end)
+
+		it("runs count hooks from the next instruction", function()
+			local count = 0
+			local function f()
+				debug.sethook(function() count = count + 1 end, "", 1)
+				local x, y = 1, 2
+				debug.sethook()
+			end
+
+			f()
+			-- LOADK, LOADK, GETGLOBAL, GETTABLE, CALL
+			expect(count):eq(5)
+		end)
+	end)
+
+	describe("fused instructions", function()
+		it("runs count hooks set by __index", function()
+			local count = 0
+			local function g() debug.sethook() end
+			local t = setmetatable({}, { __index = function()
+				debug.sethook(function() count = count + 1 end, "", 1)
+				return g
+			end })
+
+			t.f()
+			-- GETUPVAL and RETURN in __index, CALL, then GETGLOBAL, GETTABLE and CALL in g.
+			expect(count):eq(6)
+		end)
+
+		it("yields inside __index", function()
+			local t = setmetatable({}, { __index = function(_, k)
+				coroutine.yield(k)
+				return function() return 2 end
+			end })
+
+			local co = coroutine.create(function()
+				local x = t.f()
+				return x
+			end)
+			expect({ coroutine.resume(co) }):same { true, "f" }
+			expect({ coroutine.resume(co) }):same { true, 2 }
+		end)
+	end)
+
+	describe("Java functions", function()
+		it("receive many arguments", function()
+			expect(T.pack6(1, 2, 3, 4, 5, 6, 7)):same { 1, 2, 3, 4, 5, 6 }
+			expect(select(2, pcall(T.pack6, 1, 2, 3, 4, 5, 6))):same { 1, 2, 3, 4, 5, 6 }
+		end)
+
+		it("pad missing arguments with nil", function()
+			local t = T.pack6(1, 2)
+			expect(t[1]):eq(1)
+			expect(t[2]):eq(2)
+			expect(t[3]):eq(nil)
+			expect(t[6]):eq(nil)
+		end)
+
+		it("pad missing results with nil", function()
+			local x, y, z = 1, 2, 3
+			x, y, z = T.pack6(1, 2, 3, 4, 5)
+			expect(x):same { 1, 2, 3, 4, 5 }
+			expect(y):eq(nil)
+			expect(z):eq(nil)
+		end)
+	end)
+
+	describe("returning values", function()
+		local function two() return 1, 2 end
+
+		it("adjusts to the number of results", function()
+			local a, b, c = two()
+			expect(a):eq(1)
+			expect(b):eq(2)
+			expect(c):eq(nil)
+
+			local x = two()
+			expect(x):eq(1)
+		end)
+
+		it("returns a variable number of results", function()
+			local function f(...) return 0, ... end
+			local function g(...) return f(...), 3 end
+			local function h(...) local r = { f(...) } return r end
+
+			expect(h(two())):same { 0, 1, 2 }
+			expect(h(1, nil, nil)):same { 0, 1, nil, nil }
+			expect({ g(two()) }):same { 0, 3 }
+			expect(select("#", f(unpack({}, 1, 300)))):eq(301)
+		end)
+
+		it("returns values from deep recursion", function()
+			local function count(n)
+				if n == 0 then return 0, "done" end
+				local c, s = count(n - 1)
+				return c + 1, s
+			end
+
+			expect({ count(1000) }):same { 1000, "done" }
+		end)
+	end)
+
+	describe("variable arguments", function()
+		local function pack(...) return { n = select("#", ...), ... } end
+		local function forward(...) return ... end
+
+		it("are copied into locals", function()
+			local function f(a, ...)
+				local b, c, d = ...
+				return a, b, c, d
+			end
+
+			expect(pack(f(1, 2, 3))):same { n = 4, 1, 2, 3 }
+			expect(pack(f(1, 2, 3, 4, 5))):same { n = 4, 1, 2, 3, 4 }
+		end)
+
+		it("are forwarded to other functions", function()
+			expect(pack(forward())):same { n = 0 }
+			expect(pack(forward(nil, nil))):same { n = 2 }
+			expect(pack(forward(1, forward(2, 3)))):same { n = 3, 1, 2, 3 }
+			expect(select("#", forward(unpack({}, 1, 300)))):eq(300)
+		end)
+
+		it("are available via arg :lua==5.1", function()
+			local function f(...) return arg end
+			expect(f(1, nil, 3)):same { n = 3, 1, nil, 3 }
+		end)
+
+		it("can be counted with select", function()
+			local function count(...) return select("#", ...) end
+			expect(count()):eq(0)
+			expect(count(nil)):eq(1)
+			expect(count(1, nil, nil)):eq(3)
+		end)
+
+		it("can be selected from", function()
+			local function sel(n, ...) return pack(select(n, ...)) end
+			expect(sel(1, "a", "b", "c")):same { n = 3, "a", "b", "c" }
+			expect(sel(3, "a", "b", "c")):same { n = 1, "c" }
+			expect(sel(4, "a", "b", "c")):same { n = 0 }
+			expect(sel(-1, "a", "b", "c")):same { n = 1, "c" }
+
+			local function second(...)
+				local x, y = select(2, ...)
+				return x, y
+			end
+			expect(pack(second(1, 2))):same { n = 2, 2, nil }
+
+			expect.error(select, 0, 1):str_match("index out of range")
+		end)
+	end)
 end)